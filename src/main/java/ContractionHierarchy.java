@@ -0,0 +1,710 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A contraction hierarchy over the road graph, for answering shortest path queries
+ * while settling only a tiny fraction of the vertices plain A* would.
+ *
+ * Preprocessing contracts the vertices one at a time, least important first. Contracting
+ * v removes it from the remaining graph and, for every pair of its neighbors u and w
+ * whose only shortest connection runs through v, inserts a shortcut u - w of the same
+ * length. Importance is twice the edge difference (shortcuts added minus edges removed)
+ * plus the number of already contracted neighbors and the depth of the hierarchy below
+ * the vertex, which together spread the contraction evenly over the map.
+ *
+ * Contraction proceeds in rounds so that it can use every core. Each round takes the
+ * vertices less important than all of their remaining neighbors, an independent set, and
+ * runs their witness searches in parallel; the searches avoid every vertex of the round,
+ * so no two of them rely on each other's paths. The shortcuts are then inserted one
+ * vertex at a time, and the priorities of the neighbors are recomputed in parallel.
+ *
+ * Every vertex keeps the edges and shortcuts to the neighbors contracted after it, its
+ * upward edges. A shortest path then always climbs to a single highest vertex and
+ * descends again, so a query runs Dijkstra upward from both endpoints and stops once
+ * neither side can beat the best meeting point found. Shortcuts remember the vertex they
+ * bypass, which lets the query unpack them back into road segments.
+ *
+ * Roads are undirected, so the same upward edges serve both search directions.
+ */
+public class ContractionHierarchy {
+    /** Witness searches give up after settling this many vertices, adding a shortcut. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    /* These are package-private so that GraphSnapshot can save and restore them, and
+     * buffers so that a restored hierarchy reads them from the snapshot's mapped pages. */
+    /** Contraction order of each vertex; vertices contracted later have higher ranks. */
+    final IntBuffer ranks;
+    /** Upward edges of vertex v are upOffsets[v] (inclusive) to upOffsets[v + 1] (exclusive). */
+    final IntBuffer upOffsets;
+    /** Target vertex index of each upward edge; it always has a higher rank than the source. */
+    final IntBuffer upTargets;
+    /** Weight of each upward edge, in the units of the edge weights contracted. */
+    final DoubleBuffer upWeights;
+    /** The vertex each shortcut bypasses, or -1 for an original road segment. */
+    final IntBuffer upMiddles;
+    /** Per-thread query scratch space, so concurrent queries never share state. */
+    private final ThreadLocal<Query> queries;
+
+    ContractionHierarchy(IntBuffer ranks, IntBuffer upOffsets, IntBuffer upTargets,
+                         DoubleBuffer upWeights, IntBuffer upMiddles) {
+        this.ranks = ranks;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+        this.queries = ThreadLocal.withInitial(() -> new Query(ranks.limit()));
+    }
+
+    /**
+     * Contracts every vertex of a graph.
+     * @param g The frozen graph.
+     * @param edgeWeights The weight of every half-edge, such as GraphDB.edgeWeights gives.
+     * @return The finished hierarchy.
+     */
+    static ContractionHierarchy build(GraphDB g, DoubleBuffer edgeWeights) {
+        return new Builder(g, edgeWeights).build();
+    }
+
+    /**
+     * Finds a shortest path between two snapped points. Each upward search starts from
+     * both ends of its point's segment, at the weight of the part of the segment leading
+     * to that end.
+     * @param start The start point.
+     * @param end The destination point.
+     * @param weights The edge weights the hierarchy was built with, for weighing the
+     *                partial segments.
+     * @param bound The query only looks for paths lighter than this.
+     * @param stats The statistics to add the work of both upward searches to, or null to
+     *              collect none.
+     * @return The indices of the vertices on the path, from an end of the start segment to
+     * an end of the destination segment, or null if there is no path lighter than bound.
+     */
+    int[] shortestPath(SegmentIndex.Snap start, SegmentIndex.Snap end, DoubleBuffer weights,
+                       double bound, QueryStats stats) {
+        Query q = queries.get();
+        q.search(start, end, weights, bound);
+        if (stats != null) {
+            stats.addSearch(q.forward.settled, q.forward.relaxed, q.forward.heap);
+            stats.addSearch(q.backward.settled, q.backward.relaxed, q.backward.heap);
+        }
+        if (q.meeting < 0) {
+            return null;
+        }
+        return q.unpack();
+    }
+
+    /**
+     * Finds the shortest path lengths between many sources and many targets, using
+     * buckets: a complete upward search from every target leaves (target, distance)
+     * entries at each vertex it reaches, and a complete upward search from every source
+     * then combines its distances with the entries of the vertices it reaches. Both
+     * phases search from their endpoints in parallel.
+     * @param sources The source vertex indices; -1 entries have no paths.
+     * @param targets The target vertex indices; -1 entries have no paths.
+     * @return The length of the shortest path from sources[i] to targets[j] at
+     * i * targets.length + j, or infinity if there is no path.
+     */
+    double[] distances(int[] sources, int[] targets) {
+        int m = targets.length;
+        int[][] reached = new int[m][];
+        double[][] reachedDistances = new double[m][];
+        IntStream.range(0, m).parallel().filter(j -> targets[j] >= 0).forEach(j -> {
+            Side side = queries.get().backward;
+            upwardSearch(side, targets[j]);
+            reached[j] = Arrays.copyOf(side.touched, side.numTouched);
+            reachedDistances[j] = new double[side.numTouched];
+            for (int k = 0; k < side.numTouched; k++) {
+                reachedDistances[j][k] = side.dist[side.touched[k]];
+            }
+        });
+
+        /* Sort the bucket entries by vertex into CSR arrays. */
+        int n = ranks.limit();
+        int[] bucketOffsets = new int[n + 1];
+        for (int[] vertices : reached) {
+            if (vertices != null) {
+                for (int v : vertices) {
+                    bucketOffsets[v + 1] += 1;
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            bucketOffsets[v + 1] += bucketOffsets[v];
+        }
+        int[] bucketTargets = new int[bucketOffsets[n]];
+        double[] bucketDistances = new double[bucketOffsets[n]];
+        int[] next = Arrays.copyOf(bucketOffsets, n);
+        for (int j = 0; j < m; j++) {
+            if (reached[j] != null) {
+                for (int k = 0; k < reached[j].length; k++) {
+                    int b = next[reached[j][k]]++;
+                    bucketTargets[b] = j;
+                    bucketDistances[b] = reachedDistances[j][k];
+                }
+            }
+        }
+
+        double[] result = new double[sources.length * m];
+        Arrays.fill(result, Double.POSITIVE_INFINITY);
+        IntStream.range(0, sources.length).parallel().filter(i -> sources[i] >= 0).forEach(i -> {
+            Side side = queries.get().forward;
+            upwardSearch(side, sources[i]);
+            for (int k = 0; k < side.numTouched; k++) {
+                int v = side.touched[k];
+                double d = side.dist[v];
+                for (int b = bucketOffsets[v]; b < bucketOffsets[v + 1]; b++) {
+                    int cell = i * m + bucketTargets[b];
+                    result[cell] = Math.min(result[cell], d + bucketDistances[b]);
+                }
+            }
+        });
+        return result;
+    }
+
+    /** Runs an upward search from source until every vertex above it has been settled. */
+    private void upwardSearch(Side side, int source) {
+        side.start(source);
+        while (!side.heap.isEmpty()) {
+            int v = side.heap.pop();
+            double d = side.dist[v];
+            for (int e = upOffsets.get(v); e < upOffsets.get(v + 1); e++) {
+                int w = upTargets.get(e);
+                double candidate = d + upWeights.get(e);
+                if (candidate < side.dist[w]) {
+                    side.reach(w, candidate, v, upMiddles.get(e));
+                }
+            }
+        }
+    }
+
+    /** Returns the middle vertex of the upward edge from low to high. */
+    private int middleOf(int low, int high) {
+        for (int e = upOffsets.get(low); e < upOffsets.get(low + 1); e++) {
+            if (upTargets.get(e) == high) {
+                return upMiddles.get(e);
+            }
+        }
+        throw new IllegalStateException("no upward edge from " + low + " to " + high);
+    }
+
+    /**
+     * Scratch space for one thread's queries: the state of the forward search from the
+     * start, the backward search from the destination, and the unpacked path.
+     */
+    private final class Query {
+        private final Side forward;
+        private final Side backward;
+        private double best;
+        private int meeting;
+        private int[] path = new int[64];
+        private int pathSize;
+
+        Query(int n) {
+            forward = new Side(n);
+            backward = new Side(n);
+        }
+
+        /**
+         * Runs both upward searches, leaving the best meeting vertex lighter than bound in
+         * meeting, or -1 if there is none.
+         */
+        void search(SegmentIndex.Snap start, SegmentIndex.Snap end, DoubleBuffer weights,
+                    double bound) {
+            forward.start(start, weights);
+            backward.start(end, weights);
+            best = bound;
+            meeting = -1;
+            while (true) {
+                boolean forwardOpen = forward.canImprove(best);
+                boolean backwardOpen = backward.canImprove(best);
+                if (!forwardOpen && !backwardOpen) {
+                    return;
+                }
+                if (forwardOpen && (!backwardOpen
+                        || forward.heap.peekPriority() <= backward.heap.peekPriority())) {
+                    settle(forward, backward);
+                } else {
+                    settle(backward, forward);
+                }
+            }
+        }
+
+        private void settle(Side side, Side other) {
+            int v = side.heap.pop();
+            double d = side.dist[v];
+            double through = d + other.dist[v];
+            if (through < best) {
+                best = through;
+                meeting = v;
+            }
+            /* Stall on demand: if a higher vertex already offers a shorter way down to v,
+             * v cannot lie on a shortest upward path, so its edges need not be relaxed. */
+            int first = upOffsets.get(v);
+            int last = upOffsets.get(v + 1);
+            for (int e = first; e < last; e++) {
+                if (side.dist[upTargets.get(e)] + upWeights.get(e) < d) {
+                    return;
+                }
+            }
+            side.settled += 1;
+            side.relaxed += last - first;
+            SearchState.checkCancelled(side.settled);
+            for (int e = first; e < last; e++) {
+                int w = upTargets.get(e);
+                double candidate = d + upWeights.get(e);
+                if (candidate < side.dist[w]) {
+                    side.reach(w, candidate, v, upMiddles.get(e));
+                }
+            }
+        }
+
+        /** Unpacks the path through the meeting vertex into original road segments. */
+        int[] unpack() {
+            pathSize = 0;
+            /* The forward half is found from the meeting vertex backwards, so the upward
+             * edges are collected first and then unpacked from the source upward. */
+            int hops = 0;
+            for (int v = meeting; forward.parent[v] >= 0; v = forward.parent[v]) {
+                hops += 1;
+            }
+            int[] chain = new int[hops + 1];
+            int k = hops;
+            for (int v = meeting; k >= 0; v = forward.parent[v]) {
+                chain[k--] = v;
+            }
+            append(chain[0]);
+            for (int i = 1; i < chain.length; i++) {
+                unpackEdge(chain[i - 1], chain[i], forward.middle[chain[i]]);
+            }
+            for (int v = meeting; backward.parent[v] >= 0; v = backward.parent[v]) {
+                unpackEdge(v, backward.parent[v], backward.middle[v]);
+            }
+            return Arrays.copyOf(path, pathSize);
+        }
+
+        /**
+         * Appends the vertices after a up to and including b, for an edge between a and b
+         * that bypasses middle (or is a road segment if middle is -1).
+         */
+        private void unpackEdge(int a, int b, int middle) {
+            if (middle < 0) {
+                append(b);
+                return;
+            }
+            unpackEdge(a, middle, middleOf(middle, a));
+            unpackEdge(middle, b, middleOf(middle, b));
+        }
+
+        private void append(int v) {
+            if (pathSize == path.length) {
+                path = Arrays.copyOf(path, pathSize * 2);
+            }
+            path[pathSize++] = v;
+        }
+    }
+
+    /** One direction of a query: tentative distances and the upward edges taken. */
+    private static final class Side {
+        final double[] dist;
+        /** The vertex each reached vertex was reached from. */
+        final int[] parent;
+        /** The middle vertex of the edge each reached vertex was reached by. */
+        final int[] middle;
+        final IndexMinHeap heap;
+        /** Vertices whose dist was set by the current query, reset by the next one. */
+        private int[] touched = new int[64];
+        private int numTouched;
+        /** Vertices settled without stalling and edges relaxed by the current query. */
+        int settled;
+        long relaxed;
+
+        Side(int n) {
+            dist = new double[n];
+            parent = new int[n];
+            middle = new int[n];
+            heap = new IndexMinHeap(n);
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        }
+
+        void start(int source) {
+            reset();
+            reach(source, 0, -1, -1);
+        }
+
+        /** Starts a query side from both ends of a snapped point's segment. */
+        void start(SegmentIndex.Snap point, DoubleBuffer weights) {
+            reset();
+            reach(point.from, point.fromWeight(weights), -1, -1);
+            double toWeight = point.toWeight(weights);
+            if (toWeight < dist[point.to]) {
+                reach(point.to, toWeight, -1, -1);
+            }
+        }
+
+        /** Forgets the previous query. */
+        private void reset() {
+            for (int i = 0; i < numTouched; i++) {
+                dist[touched[i]] = Double.POSITIVE_INFINITY;
+            }
+            numTouched = 0;
+            settled = 0;
+            relaxed = 0;
+            heap.clear();
+        }
+
+        void reach(int v, double d, int from, int via) {
+            if (dist[v] == Double.POSITIVE_INFINITY) {
+                if (numTouched == touched.length) {
+                    touched = Arrays.copyOf(touched, numTouched * 2);
+                }
+                touched[numTouched++] = v;
+            }
+            dist[v] = d;
+            parent[v] = from;
+            middle[v] = via;
+            heap.push(v, d);
+        }
+
+        /** Returns whether this side may still find a meeting point shorter than best. */
+        boolean canImprove(double best) {
+            return !heap.isEmpty() && heap.peekPriority() < best;
+        }
+    }
+
+    /** Mutable working graph used while contracting. */
+    private static final class Builder {
+        private final int n;
+        /* Remaining neighbors of each uncontracted vertex, with edge lengths and the
+         * vertex each edge bypasses (-1 for road segments). */
+        private final int[][] neighbors;
+        private final double[][] weights;
+        private final int[][] middles;
+        private final int[] degree;
+        private final int[] contractedNeighbors;
+        /** Length of the longest chain of contracted vertices leading up to each vertex. */
+        private final int[] depth;
+        /** Vertices contracted in the current or an earlier round. */
+        private final boolean[] contracting;
+        private final ThreadLocal<Witness> witnesses;
+
+        /* Upward edges, recorded in contraction order. */
+        private int[] upFrom = new int[1 << 16];
+        private int[] upTo = new int[1 << 16];
+        private double[] upWeight = new double[1 << 16];
+        private int[] upMiddle = new int[1 << 16];
+        private int numUp;
+
+        Builder(GraphDB g, DoubleBuffer edgeWeights) {
+            n = g.size();
+            neighbors = new int[n][];
+            weights = new double[n][];
+            middles = new int[n][];
+            degree = new int[n];
+            contractedNeighbors = new int[n];
+            depth = new int[n];
+            contracting = new boolean[n];
+            witnesses = ThreadLocal.withInitial(() -> new Witness(n));
+            for (int v = 0; v < n; v++) {
+                int capacity = Math.max(2, g.lastEdge(v) - g.firstEdge(v));
+                neighbors[v] = new int[capacity];
+                weights[v] = new double[capacity];
+                middles[v] = new int[capacity];
+                for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+                    if (g.edgeTarget(e) != v) {
+                        connect(v, g.edgeTarget(e), edgeWeights.get(e), -1);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy build() {
+            double[] priorities = new double[n];
+            IntStream.range(0, n).parallel().forEach(v -> priorities[v] = priority(v));
+            int[] remaining = new int[n];
+            for (int v = 0; v < n; v++) {
+                remaining[v] = v;
+            }
+            int numRemaining = n;
+            boolean[] stale = new boolean[n];
+            int[] ranks = new int[n];
+            int rank = 0;
+            while (numRemaining > 0) {
+                int[] round = Arrays.stream(remaining, 0, numRemaining).parallel()
+                        .filter(v -> leastImportantAround(v, priorities)).toArray();
+                for (int v : round) {
+                    contracting[v] = true;
+                }
+                ShortcutList[] found = new ShortcutList[round.length];
+                IntStream.range(0, round.length).parallel().forEach(i -> {
+                    found[i] = new ShortcutList();
+                    shortcuts(round[i], found[i]);
+                });
+                IntStream.Builder affected = IntStream.builder();
+                for (int i = 0; i < round.length; i++) {
+                    int v = round[i];
+                    ranks[v] = rank++;
+                    for (int j = 0; j < degree[v]; j++) {
+                        int u = neighbors[v][j];
+                        contractedNeighbors[u] += 1;
+                        depth[u] = Math.max(depth[u], depth[v] + 1);
+                        if (!stale[u]) {
+                            stale[u] = true;
+                            affected.add(u);
+                        }
+                    }
+                    contract(v, found[i]);
+                }
+                affected.build().parallel().forEach(u -> {
+                    stale[u] = false;
+                    priorities[u] = priority(u);
+                });
+                int kept = 0;
+                for (int i = 0; i < numRemaining; i++) {
+                    if (!contracting[remaining[i]]) {
+                        remaining[kept++] = remaining[i];
+                    }
+                }
+                numRemaining = kept;
+            }
+            return freeze(ranks);
+        }
+
+        /**
+         * Returns whether v comes before all of its remaining neighbors, comparing
+         * priorities and then vertex indices, so that every round contracts at least one
+         * vertex and never two adjacent ones.
+         */
+        private boolean leastImportantAround(int v, double[] priorities) {
+            for (int i = 0; i < degree[v]; i++) {
+                int u = neighbors[v][i];
+                if (priorities[u] < priorities[v] || (priorities[u] == priorities[v] && u < v)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Lower values are contracted first. */
+        private double priority(int v) {
+            return 2 * (shortcuts(v, null) - degree[v]) + contractedNeighbors[v] + depth[v];
+        }
+
+        /**
+         * Counts the shortcuts contracting v would need.
+         * @param v The vertex.
+         * @param found If not null, receives the shortcuts as (u, w, length) triples.
+         * @return The number of shortcuts.
+         */
+        private int shortcuts(int v, ShortcutList found) {
+            Witness witness = witnesses.get();
+            int[] adj = neighbors[v];
+            double[] len = weights[v];
+            int count = 0;
+            for (int i = 0; i < degree[v] - 1; i++) {
+                double farthest = 0;
+                for (int j = i + 1; j < degree[v]; j++) {
+                    farthest = Math.max(farthest, len[j]);
+                }
+                witness.search(this, adj[i], v, len[i] + farthest, adj, i + 1, degree[v]);
+                for (int j = i + 1; j < degree[v]; j++) {
+                    double via = len[i] + len[j];
+                    if (witness.dist[adj[j]] > via) {
+                        count += 1;
+                        if (found != null) {
+                            found.add(adj[i], adj[j], via);
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /** Removes v from the working graph, recording its upward edges and shortcuts. */
+        private void contract(int v, ShortcutList found) {
+            for (int i = 0; i < degree[v]; i++) {
+                int u = neighbors[v][i];
+                recordUp(v, u, weights[v][i], middles[v][i]);
+                disconnect(u, v);
+            }
+            for (int i = 0; i < found.size; i++) {
+                connect(found.from[i], found.to[i], found.length[i], v);
+                connect(found.to[i], found.from[i], found.length[i], v);
+            }
+            neighbors[v] = null;
+            weights[v] = null;
+            middles[v] = null;
+            degree[v] = 0;
+        }
+
+        /** Adds or shortens the edge from a to b. */
+        private void connect(int a, int b, double length, int middle) {
+            int[] adj = neighbors[a];
+            for (int i = 0; i < degree[a]; i++) {
+                if (adj[i] == b) {
+                    if (length < weights[a][i]) {
+                        weights[a][i] = length;
+                        middles[a][i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (degree[a] == adj.length) {
+                int capacity = adj.length * 2;
+                neighbors[a] = Arrays.copyOf(adj, capacity);
+                weights[a] = Arrays.copyOf(weights[a], capacity);
+                middles[a] = Arrays.copyOf(middles[a], capacity);
+            }
+            neighbors[a][degree[a]] = b;
+            weights[a][degree[a]] = length;
+            middles[a][degree[a]] = middle;
+            degree[a] += 1;
+        }
+
+        /** Removes the edge from a to b. */
+        private void disconnect(int a, int b) {
+            int last = degree[a] - 1;
+            for (int i = 0; i <= last; i++) {
+                if (neighbors[a][i] == b) {
+                    neighbors[a][i] = neighbors[a][last];
+                    weights[a][i] = weights[a][last];
+                    middles[a][i] = middles[a][last];
+                    degree[a] = last;
+                    return;
+                }
+            }
+        }
+
+        private void recordUp(int from, int to, double length, int middle) {
+            if (numUp == upFrom.length) {
+                int capacity = numUp * 2;
+                upFrom = Arrays.copyOf(upFrom, capacity);
+                upTo = Arrays.copyOf(upTo, capacity);
+                upWeight = Arrays.copyOf(upWeight, capacity);
+                upMiddle = Arrays.copyOf(upMiddle, capacity);
+            }
+            upFrom[numUp] = from;
+            upTo[numUp] = to;
+            upWeight[numUp] = length;
+            upMiddle[numUp] = middle;
+            numUp += 1;
+        }
+
+        /** Sorts the recorded upward edges by source vertex into CSR arrays. */
+        private ContractionHierarchy freeze(int[] ranks) {
+            int[] offsets = new int[n + 1];
+            for (int i = 0; i < numUp; i++) {
+                offsets[upFrom[i] + 1] += 1;
+            }
+            for (int v = 0; v < n; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            int[] targets = new int[numUp];
+            double[] lengths = new double[numUp];
+            int[] bypassed = new int[numUp];
+            int[] next = Arrays.copyOf(offsets, n);
+            for (int i = 0; i < numUp; i++) {
+                int e = next[upFrom[i]]++;
+                targets[e] = upTo[i];
+                lengths[e] = upWeight[i];
+                bypassed[e] = upMiddle[i];
+            }
+            return new ContractionHierarchy(IntBuffer.wrap(ranks), IntBuffer.wrap(offsets),
+                    IntBuffer.wrap(targets), DoubleBuffer.wrap(lengths), IntBuffer.wrap(bypassed));
+        }
+    }
+
+    /** A bounded Dijkstra search over the working graph, looking for witness paths. */
+    private static final class Witness {
+        final double[] dist;
+        private final IndexMinHeap heap;
+        /** Vertices marked with the current search's stamp are still to be settled. */
+        private final int[] targetStamps;
+        private int stamp;
+        private int[] touched = new int[64];
+        private int numTouched;
+
+        Witness(int n) {
+            dist = new double[n];
+            heap = new IndexMinHeap(n);
+            targetStamps = new int[n];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * Finds distances from source that avoid excluded and the vertices being
+         * contracted, up to limit, stopping early once targets[from] .. targets[to - 1]
+         * are all settled. Vertices that were not settled keep a tentative
+         * (over-estimated) or infinite distance, which can only cause extra shortcuts.
+         */
+        void search(Builder b, int source, int excluded, double limit,
+                    int[] targets, int from, int to) {
+            stamp += 1;
+            int remaining = 0;
+            for (int i = from; i < to; i++) {
+                targetStamps[targets[i]] = stamp;
+                remaining += 1;
+            }
+            for (int i = 0; i < numTouched; i++) {
+                dist[touched[i]] = Double.POSITIVE_INFINITY;
+            }
+            numTouched = 0;
+            heap.clear();
+            reach(source, 0);
+            int settled = 0;
+            while (!heap.isEmpty() && heap.peekPriority() <= limit
+                    && settled < WITNESS_SETTLE_LIMIT) {
+                int v = heap.pop();
+                settled += 1;
+                if (targetStamps[v] == stamp) {
+                    remaining -= 1;
+                    if (remaining == 0) {
+                        return;
+                    }
+                }
+                int[] adj = b.neighbors[v];
+                double[] len = b.weights[v];
+                for (int i = 0; i < b.degree[v]; i++) {
+                    int w = adj[i];
+                    double candidate = dist[v] + len[i];
+                    if (w != excluded && !b.contracting[w] && candidate <= limit
+                            && candidate < dist[w]) {
+                        reach(w, candidate);
+                    }
+                }
+            }
+        }
+
+        private void reach(int v, double d) {
+            if (dist[v] == Double.POSITIVE_INFINITY) {
+                if (numTouched == touched.length) {
+                    touched = Arrays.copyOf(touched, numTouched * 2);
+                }
+                touched[numTouched++] = v;
+            }
+            dist[v] = d;
+            heap.push(v, d);
+        }
+    }
+
+    /** Shortcuts found while contracting one vertex. */
+    private static final class ShortcutList {
+        int[] from = new int[8];
+        int[] to = new int[8];
+        double[] length = new double[8];
+        int size;
+
+        void add(int u, int w, double via) {
+            if (size == from.length) {
+                from = Arrays.copyOf(from, size * 2);
+                to = Arrays.copyOf(to, size * 2);
+                length = Arrays.copyOf(length, size * 2);
+            }
+            from[size] = u;
+            to[size] = w;
+            length[size] = via;
+            size += 1;
+        }
+    }
+}
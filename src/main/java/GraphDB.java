@@ -1,56 +1,133 @@
-import org.xml.sax.SAXException;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ArrayList;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
- * Uses your GraphBuildingHandler to convert the XML files into a graph. Your
+ * Uses OsmReader to convert the XML files into a graph. Your
  * code must include the vertices, adjacent, distance, closest, lat, and lon
  * methods. You'll also need to include instance variables and methods for
- * modifying the graph (e.g. addNode and addEdge).
+ * modifying the graph (e.g. addNode and addWay).
+ *
+ * While the XML is being parsed, nodes and edges are staged in growable primitive
+ * arrays. Once parsing finishes, clean() freezes the graph into an immutable
+ * compressed sparse row (CSR) layout: every vertex gets a dense int index, the
+ * coordinates live in parallel lon/lat columns, and the neighbors of vertex v are
+ * stored in targets[offsets[v]] .. targets[offsets[v + 1] - 1]. Vertex indices are
+ * assigned in ascending OSM id order, so id to index lookups are a binary search
+ * over the ids column; only the long-based API methods pay for that lookup.
  *
  * @author Alan Yao, Josh Hug
  */
 public class GraphDB {
-    HashMap<Long, Node> allNodes;
     Trie allLocations;
+    /** Every named location added to allLocations, kept so snapshots can rebuild it. */
+    ArrayList<Node> locations;
+
+    /** Initial capacity of the staging arrays used while parsing. */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /* Staging state, only populated while the XML file is being parsed. */
+    private LongIntHashMap stagedIndex;
+    private long[] stagedIds;
+    private double[] stagedLons;
+    private double[] stagedLats;
+    private int stagedNodes;
+    private int[] stagedFrom;
+    private int[] stagedTo;
+    private int[] stagedWay;
+    private int stagedEdges;
+    private ArrayList<String> stagedWayNames;
+    /** Speed in mph of each staged way, resolved by SpeedProfile as the way is added. */
+    private double[] stagedWaySpeeds;
 
-    /** Your instance variables for storing the graph. You should consider
-     * creating helper classes, e.g. Node, Edge, etc. */
+    /* Frozen CSR graph. Every undirected road segment is stored as two half-edges.
+     * These are package-private so that GraphSnapshot can save and restore them. The
+     * columns are buffers so that a restored graph can read them straight from the
+     * snapshot's mapped pages; a graph built from XML wraps plain arrays. */
+    /** OSM id of each vertex, sorted ascending. */
+    LongBuffer ids;
+    DoubleBuffer lons;
+    DoubleBuffer lats;
+    /** Half-edges of vertex v are offsets[v] (inclusive) to offsets[v + 1] (exclusive). */
+    IntBuffer offsets;
+    /** Target vertex index of each half-edge. */
+    IntBuffer targets;
+    /** Way index of each half-edge, used to look up the way's name. */
+    IntBuffer edgeWays;
+    String[] wayNames;
+    /** Great-circle length in miles of each half-edge, computed once when freezing. */
+    DoubleBuffer edgeLengths;
+    /** Travel time in seconds of each half-edge at its way's speed, computed with edgeLengths. */
+    DoubleBuffer edgeTimes;
+    /**
+     * Connected component of each vertex: two vertices share a label exactly when some
+     * path joins them. Derived from the CSR arrays by labelComponents().
+     */
+    IntBuffer components;
+    /** Spatial index over the vertices, used for nearest-vertex lookups. */
+    KdTree spatialIndex;
+    /** Spatial index over the road segments, used to snap locations onto roads. */
+    SegmentIndex segmentIndex;
+    /**
+     * Contraction hierarchy for fast routing under each metric, indexed by ordinal; an
+     * entry is null until that hierarchy is built or restored.
+     */
+    final ContractionHierarchy[] hierarchies = new ContractionHierarchy[Router.Metric.COUNT];
+    /**
+     * Landmark distances for the ALT heuristic under each metric, indexed by ordinal; an
+     * entry is null until those landmarks are built or restored.
+     */
+    final Landmarks[] landmarks = new Landmarks[Router.Metric.COUNT];
+    /**
+     * Earth radius times the sin(m) / m shrink factor used by heuristic(); see there.
+     * Derived from the coordinate columns by prepareHeuristic().
+     */
+    double heuristicScale;
+    /** Smallest cosine of any vertex latitude, which scales longitudes in heuristic(). */
+    double heuristicCosLat;
+    /** Fewest seconds any half-edge takes per mile, which scales heuristic() to travel time. */
+    double heuristicSecondsPerMile;
 
     /**
-     * Example constructor shows how to create and start an XML parser.
-     * You do not need to modify this constructor, but you're welcome to do so.
-     * @param dbPath Path to the XML file to be parsed.
+     * Builds the graph by streaming an OSM XML file through an OsmReader.
+     * @param dbPath Path to the XML file to be parsed, optionally gzip or bzip2 compressed.
      */
     public GraphDB(String dbPath) {
-        allNodes = new HashMap<>();
-        allLocations = new Trie();
+        this();
+        stagedIndex = new LongIntHashMap(INITIAL_CAPACITY);
+        stagedIds = new long[INITIAL_CAPACITY];
+        stagedLons = new double[INITIAL_CAPACITY];
+        stagedLats = new double[INITIAL_CAPACITY];
+        stagedFrom = new int[INITIAL_CAPACITY];
+        stagedTo = new int[INITIAL_CAPACITY];
+        stagedWay = new int[INITIAL_CAPACITY];
+        stagedWayNames = new ArrayList<>();
+        stagedWaySpeeds = new double[INITIAL_CAPACITY];
         try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            new OsmReader(this).read(dbPath);
+        } catch (IOException e) {
             e.printStackTrace();
         }
         clean();
         //System.out.println(getLocationsByPrefix("fin"));
     }
 
+    /**
+     * Creates a graph with no vertices and no locations. GraphSnapshot fills in the
+     * frozen columns directly when restoring a saved graph.
+     */
+    GraphDB() {
+        allLocations = new Trie();
+        locations = new ArrayList<>();
+    }
+
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
@@ -61,19 +138,124 @@ public class GraphDB {
     }
 
     /**
-     *  Remove nodes with no connections from the graph.
+     *  Remove nodes with no connections from the graph and freeze the staged nodes and
+     *  edges into the CSR arrays.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
      */
     private void clean() {
-        HashMap<Long, Node> cleanedAllNodes = new HashMap<>();
-        for (Node currNode : allNodes.values()) {
-            if (!currNode.edges.isEmpty()) {
-                cleanedAllNodes.put(currNode.v, currNode);
+        int[] degree = new int[stagedNodes];
+        for (int e = 0; e < stagedEdges; e++) {
+            degree[stagedFrom[e]] += 1;
+            degree[stagedTo[e]] += 1;
+        }
+
+        /* Order the surviving vertices by OSM id so that lookups can binary search. */
+        int[] order = new int[stagedNodes];
+        int n = 0;
+        for (int s = 0; s < stagedNodes; s++) {
+            if (degree[s] > 0) {
+                order[n++] = s;
+            }
+        }
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = stagedIds[order[i]];
+        }
+        Arrays.sort(keys);
+
+        double[] lonColumn = new double[n];
+        double[] latColumn = new double[n];
+        int[] remap = new int[stagedNodes];
+        for (int i = 0; i < n; i++) {
+            int s = stagedIndex.get(keys[i], -1);
+            remap[s] = i;
+            lonColumn[i] = stagedLons[s];
+            latColumn[i] = stagedLats[s];
+        }
+
+        int[] offsetColumn = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            offsetColumn[i + 1] = offsetColumn[i] + degree[stagedIndex.get(keys[i], -1)];
+        }
+        int[] targetColumn = new int[offsetColumn[n]];
+        int[] wayColumn = new int[offsetColumn[n]];
+        int[] next = Arrays.copyOf(offsetColumn, n);
+        for (int e = 0; e < stagedEdges; e++) {
+            int v1 = remap[stagedFrom[e]];
+            int v2 = remap[stagedTo[e]];
+            targetColumn[next[v1]] = v2;
+            wayColumn[next[v1]++] = stagedWay[e];
+            targetColumn[next[v2]] = v1;
+            wayColumn[next[v2]++] = stagedWay[e];
+        }
+        ids = LongBuffer.wrap(keys);
+        lons = DoubleBuffer.wrap(lonColumn);
+        lats = DoubleBuffer.wrap(latColumn);
+        offsets = IntBuffer.wrap(offsetColumn);
+        targets = IntBuffer.wrap(targetColumn);
+        edgeWays = IntBuffer.wrap(wayColumn);
+        wayNames = stagedWayNames.toArray(new String[0]);
+        double[] lengthColumn = new double[targetColumn.length];
+        double[] timeColumn = new double[targetColumn.length];
+        for (int v = 0; v < n; v++) {
+            for (int e = offsetColumn[v]; e < offsetColumn[v + 1]; e++) {
+                lengthColumn[e] = distanceAt(v, targetColumn[e]);
+                timeColumn[e] = lengthColumn[e] * (3600 / stagedWaySpeeds[wayColumn[e]]);
             }
         }
-        allNodes = null;
-        allNodes = cleanedAllNodes;
+        edgeLengths = DoubleBuffer.wrap(lengthColumn);
+        edgeTimes = DoubleBuffer.wrap(timeColumn);
+        prepareHeuristic();
+        labelComponents();
+        spatialIndex = new KdTree(lons, lats);
+        segmentIndex = new SegmentIndex(this);
+
+        stagedIndex = null;
+        stagedIds = null;
+        stagedLons = null;
+        stagedLats = null;
+        stagedFrom = null;
+        stagedTo = null;
+        stagedWay = null;
+        stagedWayNames = null;
+        stagedWaySpeeds = null;
+    }
+
+    /**
+     * Returns the graph's contraction hierarchy for a metric, contracting the graph first
+     * if this is the first time it is needed. Building one takes a while on large maps, so
+     * servers that route with it build it at startup (see GraphSnapshot.load).
+     * @param metric The metric the hierarchy's distances are measured in.
+     * @return The contraction hierarchy.
+     */
+    synchronized ContractionHierarchy contractionHierarchy(Router.Metric metric) {
+        if (hierarchies[metric.ordinal()] == null) {
+            hierarchies[metric.ordinal()] = ContractionHierarchy.build(this, edgeWeights(metric));
+        }
+        return hierarchies[metric.ordinal()];
+    }
+
+    /**
+     * Returns the graph's landmark distances for a metric, computing them first if this
+     * is the first time they are needed.
+     * @param metric The metric the landmark distances are measured in.
+     * @return The landmarks.
+     */
+    synchronized Landmarks landmarks(Router.Metric metric) {
+        if (landmarks[metric.ordinal()] == null) {
+            landmarks[metric.ordinal()] = Landmarks.build(this, Landmarks.DEFAULT_COUNT,
+                    edgeWeights(metric));
+        }
+        return landmarks[metric.ordinal()];
+    }
+
+    /**
+     * Returns the weight of every half-edge under a metric: edgeLengths for SHORTEST and
+     * edgeTimes for FASTEST. The column is shared, not copied.
+     */
+    DoubleBuffer edgeWeights(Router.Metric metric) {
+        return metric == Router.Metric.FASTEST ? edgeTimes : edgeLengths;
     }
 
     /**
@@ -81,7 +263,11 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        return allNodes.keySet();
+        List<Long> vertices = new ArrayList<>(size());
+        for (int v = 0; v < size(); v++) {
+            vertices.add(ids.get(v));
+        }
+        return vertices;
     }
 
     /**
@@ -90,13 +276,10 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        HashSet<Long> adj = new HashSet<>();
-        for (Edge e : allNodes.get(v).edges) {
-            if (e.v1 == v) {
-                adj.add(e.v2);
-            } else {
-                adj.add(e.v1);
-            }
+        int index = indexOf(v);
+        LinkedHashSet<Long> adj = new LinkedHashSet<>();
+        for (int e = offsets.get(index); e < offsets.get(index + 1); e++) {
+            adj.add(ids.get(targets.get(e)));
         }
         return adj;
     }
@@ -125,6 +308,126 @@ public class GraphDB {
         return 3963 * c;
     }
 
+    /**
+     * Returns the great-circle distance between the vertices at indices v and w in miles.
+     * @param v The index of the first vertex.
+     * @param w The index of the second vertex.
+     * @return The great-circle distance between the two vertices.
+     */
+    double distanceAt(int v, int w) {
+        return distance(lons.get(v), lats.get(v), lons.get(w), lats.get(w));
+    }
+
+    /**
+     * Returns a lower bound on the great-circle distance in miles between the vertices at
+     * indices v and t, cheap enough to evaluate for every vertex A* pushes.
+     *
+     * The bound is an equirectangular distance, shrunk just enough to be provably
+     * admissible. The haversine distance is d = 2R asin(sqrt(a)), with
+     * a = sin^2(dphi / 2) + cos(phi1) cos(phi2) sin^2(dlambda / 2). Since asin(x) >= x,
+     * d >= 2R sqrt(a). Since sine is concave on [0, pi / 2], sin(x) >= x sin(m) / m for
+     * every |x| <= m, where m bounds the half-differences of latitude and longitude within
+     * the graph. And cos(phi1) cos(phi2) >= c^2 with c the smallest cosine of any latitude
+     * in the graph. Hence d >= R (sin(m) / m) sqrt(dphi^2 + (c dlambda)^2). Every edge
+     * weight is a great-circle distance, so any path is at least as long as this bound too.
+     *
+     * The bound is a Euclidean distance between scaled coordinates, so it also obeys the
+     * triangle inequality. Together with being a lower bound on every edge, that makes it
+     * consistent, which bidirectional search relies on.
+     * @param v The index of the vertex being estimated.
+     * @param t The index of the target vertex.
+     * @return A lower bound on the distance between the vertices.
+     */
+    double heuristic(int v, int t) {
+        double dphi = Math.toRadians(lats.get(t) - lats.get(v));
+        double dlambda = Math.toRadians(lons.get(t) - lons.get(v)) * heuristicCosLat;
+        return heuristicScale * Math.sqrt(dphi * dphi + dlambda * dlambda);
+    }
+
+    /**
+     * Returns a lower bound on the weight under a metric of any path between the vertices
+     * at indices v and t. For FASTEST this is heuristic(v, t) at the highest speed of any
+     * half-edge, so it stays consistent with respect to travel times.
+     */
+    double heuristic(int v, int t, Router.Metric metric) {
+        double miles = heuristic(v, t);
+        return metric == Router.Metric.FASTEST ? miles * heuristicSecondsPerMile : miles;
+    }
+
+    /**
+     * Computes heuristicScale and heuristicCosLat from the extent of the coordinate
+     * columns, and heuristicSecondsPerMile from the edge lengths and times.
+     */
+    void prepareHeuristic() {
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < size(); v++) {
+            minLon = Math.min(minLon, lons.get(v));
+            maxLon = Math.max(maxLon, lons.get(v));
+            minLat = Math.min(minLat, lats.get(v));
+            maxLat = Math.max(maxLat, lats.get(v));
+        }
+        double m = Math.toRadians(Math.max(maxLon - minLon, maxLat - minLat)) / 2;
+        double shrink = m > 0 ? Math.sin(Math.min(m, Math.PI / 2)) / m : 1;
+        /* The last factor absorbs the rounding error of evaluating either formula. */
+        heuristicScale = 3963 * shrink * (1 - 1e-12);
+        heuristicCosLat = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+        double secondsPerMile = Double.POSITIVE_INFINITY;
+        for (int e = 0; e < edgeLengths.limit(); e++) {
+            if (edgeLengths.get(e) > 0) {
+                secondsPerMile = Math.min(secondsPerMile, edgeTimes.get(e) / edgeLengths.get(e));
+            }
+        }
+        heuristicSecondsPerMile = secondsPerMile < Double.POSITIVE_INFINITY
+                ? secondsPerMile * (1 - 1e-12) : 0;
+    }
+
+    /**
+     * Labels every vertex with its connected component, numbering the components in the
+     * order a scan over the vertices first meets them. Each component is flooded with a
+     * breadth-first search over the half-edges, so labeling takes linear time.
+     */
+    void labelComponents() {
+        int n = size();
+        int[] labels = new int[n];
+        Arrays.fill(labels, -1);
+        int[] queue = new int[n];
+        int label = 0;
+        for (int s = 0; s < n; s++) {
+            if (labels[s] >= 0) {
+                continue;
+            }
+            labels[s] = label;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = s;
+            while (head < tail) {
+                int v = queue[head++];
+                for (int e = offsets.get(v); e < offsets.get(v + 1); e++) {
+                    int w = targets.get(e);
+                    if (labels[w] < 0) {
+                        labels[w] = label;
+                        queue[tail++] = w;
+                    }
+                }
+            }
+            label += 1;
+        }
+        components = IntBuffer.wrap(labels);
+    }
+
+    /** Returns whether some path joins the vertices at indices v and w. */
+    boolean connected(int v, int w) {
+        return components.get(v) == components.get(w);
+    }
+
+    /** Returns the connected component of the vertex at index v. */
+    int componentOf(int v) {
+        return components.get(v);
+    }
+
     /**
      * Returns the initial bearing (angle) between vertices v and w in degrees.
      * The initial bearing is the angle that, if followed in a straight line
@@ -152,6 +455,16 @@ public class GraphDB {
         return Math.toDegrees(Math.atan2(y, x));
     }
 
+    /**
+     * Returns the initial bearing between the vertices at indices v and w in degrees.
+     * @param v The index of the first vertex.
+     * @param w The index of the second vertex.
+     * @return The initial bearing between the vertices.
+     */
+    double bearingAt(int v, int w) {
+        return bearing(lons.get(v), lats.get(v), lons.get(w), lats.get(w));
+    }
+
     /**
      * Returns the vertex closest to the given longitude and latitude.
      * @param lon The target longitude.
@@ -159,16 +472,59 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        long bestNode = 0;
-        double smallest = Double.POSITIVE_INFINITY;
-        for (Node n : allNodes.values()) {
-            double currDistance = distance(lon, lat, n.lon, n.lat);
-            if (currDistance < smallest) {
-                smallest = currDistance;
-                bestNode = n.v;
-            }
+        int index = closestIndex(lon, lat);
+        return index < 0 ? 0 : ids.get(index);
+    }
+
+    /**
+     * Returns the index of the vertex closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index of the closest vertex, or -1 if the graph is empty.
+     */
+    int closestIndex(double lon, double lat) {
+        return spatialIndex.nearest(lon, lat);
+    }
+
+    /**
+     * Returns the point on the road network closest to the given longitude and latitude,
+     * which unlike the closest vertex may lie partway along a road segment.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The snapped point, or null if the graph has no road segments.
+     */
+    SegmentIndex.Snap snap(double lon, double lat) {
+        return segmentIndex.nearest(lon, lat);
+    }
+
+    /**
+     * Returns the k vertices closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The number of vertices to return.
+     * @return The ids of up to k vertices, ordered from closest to farthest.
+     */
+    List<Long> closest(double lon, double lat, int k) {
+        return toIds(spatialIndex.nearest(lon, lat, k));
+    }
+
+    /**
+     * Returns all vertices within the given great-circle distance of a location.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param radius The maximum distance in miles.
+     * @return The ids of the matching vertices, ordered from closest to farthest.
+     */
+    List<Long> within(double lon, double lat, double radius) {
+        return toIds(spatialIndex.within(lon, lat, radius));
+    }
+
+    private List<Long> toIds(int[] indices) {
+        List<Long> result = new ArrayList<>(indices.length);
+        for (int v : indices) {
+            result.add(ids.get(v));
         }
-        return bestNode;
+        return result;
     }
 
     /**
@@ -177,7 +533,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        return allNodes.get(v).lon;
+        return lons.get(indexOf(v));
     }
 
     /**
@@ -186,25 +542,179 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        return allNodes.get(v).lat;
+        return lats.get(indexOf(v));
+    }
+
+    /** Returns the number of vertices in the graph. */
+    int size() {
+        return ids.limit();
+    }
+
+    /**
+     * Returns the dense index of the vertex with the given id.
+     * @param v The id of the vertex.
+     * @return The index of the vertex, or -1 if there is no such vertex.
+     */
+    int indexOf(long v) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long id = ids.get(mid);
+            if (id < v) {
+                lo = mid + 1;
+            } else if (id > v) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the id of the vertex at index v. */
+    long idAt(int v) {
+        return ids.get(v);
+    }
+
+    /** Returns the longitude of the vertex at index v. */
+    double lonAt(int v) {
+        return lons.get(v);
+    }
+
+    /** Returns the latitude of the vertex at index v. */
+    double latAt(int v) {
+        return lats.get(v);
+    }
+
+    /** Returns the first half-edge of the vertex at index v. */
+    int firstEdge(int v) {
+        return offsets.get(v);
+    }
+
+    /** Returns one past the last half-edge of the vertex at index v. */
+    int lastEdge(int v) {
+        return offsets.get(v + 1);
+    }
+
+    /** Returns the index of the vertex half-edge e points to. */
+    int edgeTarget(int e) {
+        return targets.get(e);
+    }
+
+    /** Returns the length in miles of half-edge e. */
+    double edgeLength(int e) {
+        return edgeLengths.get(e);
+    }
+
+    /** Returns the name of the way half-edge e belongs to. */
+    String edgeName(int e) {
+        return wayNames[edgeWays.get(e)];
+    }
+
+    /** Returns the travel time in seconds of half-edge e. */
+    double edgeTime(int e) {
+        return edgeTimes.get(e);
+    }
+
+    /**
+     * Returns the half-edge from the vertex at index v to the vertex at index w.
+     * @return The first matching half-edge, or -1 if v and w are not adjacent.
+     */
+    int edgeBetween(int v, int w) {
+        for (int e = offsets.get(v); e < offsets.get(v + 1); e++) {
+            if (targets.get(e) == w) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the lightest half-edge from the vertex at index v to the vertex at index w.
+     * @param weights The weight of every half-edge, such as edgeWeights gives.
+     * @return The matching half-edge of least weight, or -1 if v and w are not adjacent.
+     */
+    int edgeBetween(int v, int w, DoubleBuffer weights) {
+        int best = -1;
+        for (int e = offsets.get(v); e < offsets.get(v + 1); e++) {
+            if (targets.get(e) == w && (best < 0 || weights.get(e) < weights.get(best))) {
+                best = e;
+            }
+        }
+        return best;
     }
 
     void addNode(long v, double lon, double lat) {
-        Node newNode = new Node(v, lon, lat);
-        allNodes.put(v, newNode);
+        if (stagedNodes == stagedIds.length) {
+            int capacity = stagedIds.length * 2;
+            stagedIds = Arrays.copyOf(stagedIds, capacity);
+            stagedLons = Arrays.copyOf(stagedLons, capacity);
+            stagedLats = Arrays.copyOf(stagedLats, capacity);
+        }
+        int s = stagedIndex.putIfAbsent(v, stagedNodes);
+        if (s == stagedNodes) {
+            stagedNodes += 1;
+        }
+        stagedIds[s] = v;
+        stagedLons[s] = lon;
+        stagedLats[s] = lat;
+    }
+
+    /**
+     * Adds a way as a chain of edges between consecutive nodes.
+     * @param verts The ids of the way's nodes, in order.
+     * @param highway The way's highway tag, or null.
+     * @param maxSpeed The way's maxspeed tag, or null.
+     * @param name The way's name, or null.
+     */
+    void addWay(long[] verts, String highway, String maxSpeed, String name) {
+        int way = stageWay(highway, maxSpeed, name);
+        for (int i = 1; i < verts.length; i++) {
+            stageEdge(verts[i - 1], verts[i], way);
+        }
+    }
+
+    /**
+     * Adds a named location to the location search index.
+     * @param location The location, which must already have its name set.
+     */
+    void addLocation(Node location) {
+        locations.add(location);
+        allLocations.put(cleanString(location.name), location);
     }
 
-    void addEdge(long v1, long v2, String maxSpeed, String name) {
-        Edge newEdge = new Edge(v1, v2, maxSpeed);
-        newEdge.name = name;
-        allNodes.get(v1).edges.add(newEdge);
-        allNodes.get(v2).edges.add(newEdge);
+    /** Stages a way's attributes and returns its way index. */
+    private int stageWay(String highway, String maxSpeed, String name) {
+        int way = stagedWayNames.size();
+        if (way == stagedWaySpeeds.length) {
+            stagedWaySpeeds = Arrays.copyOf(stagedWaySpeeds, way * 2);
+        }
+        stagedWaySpeeds[way] = SpeedProfile.mph(highway, maxSpeed);
+        stagedWayNames.add(name);
+        return way;
     }
 
-    void addWay(ArrayList<Long> verts, String maxSpeed, String name) {
-        for (int i = 1; i < verts.size(); i++) {
-            addEdge(verts.get(i - 1), verts.get(i), maxSpeed, name);
+    /**
+     * Stages an edge between two parsed nodes. Edges to unknown nodes are ignored, and so
+     * are the zero-length loops a way that repeats a node ref would give.
+     */
+    private void stageEdge(long v1, long v2, int way) {
+        int s1 = stagedIndex.get(v1, -1);
+        int s2 = stagedIndex.get(v2, -1);
+        if (s1 < 0 || s2 < 0 || s1 == s2) {
+            return;
+        }
+        if (stagedEdges == stagedFrom.length) {
+            int capacity = stagedFrom.length * 2;
+            stagedFrom = Arrays.copyOf(stagedFrom, capacity);
+            stagedTo = Arrays.copyOf(stagedTo, capacity);
+            stagedWay = Arrays.copyOf(stagedWay, capacity);
         }
+        stagedFrom[stagedEdges] = s1;
+        stagedTo[stagedEdges] = s2;
+        stagedWay[stagedEdges] = way;
+        stagedEdges += 1;
     }
 
     public List<String> getLocationsByPrefix(String prefix) {
@@ -216,18 +726,20 @@ public class GraphDB {
         return allLocations.getMatches(locationName);
     }
 
+    /**
+     * A named location parsed from the OSM file. Only used to populate the location
+     * Trie; the road graph itself lives in the CSR arrays.
+     */
     static class Node {
         long v;
         double lon;
         double lat;
         String name;
-        HashSet<Edge> edges;
 
         Node(long v, double lon, double lat) {
             this.v = v;
             this.lon = lon;
             this.lat = lat;
-            this.edges = new HashSet<>();
         } // End Node constructor
 
         void setName(String name) {
@@ -235,17 +747,4 @@ public class GraphDB {
         }
     } // End Node class
 
-    class Edge {
-        long v1;
-        long v2;
-        String maxSpeed;
-        String name;
-
-        Edge(long v1, long v2, String maxSpeed) {
-            this.v1 = v1;
-            this.v2 = v2;
-            this.maxSpeed = maxSpeed;
-        } // End Edge constructor
-    } // End Edge class
-
 }
@@ -0,0 +1,446 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Saves a finished GraphDB (CSR arrays, edge lengths and travel times, components, the
+ * vertex and segment indexes, way attributes, named locations and, for each metric they
+ * have been built for, the contraction hierarchy and ALT landmarks) to a versioned binary
+ * file, and restores it by memory-mapping that file. Restoring a snapshot skips XML
+ * parsing, cleaning and index construction entirely.
+ *
+ * The restored graph reads its columns straight from the mapped file rather than from
+ * copies on the heap, so restoring only decodes the way names and locations, pages are
+ * read from disk as routing first touches them, and servers on one host share a single
+ * copy of the snapshot in the OS page cache. Since a running server keeps reading the
+ * file, write() never changes a snapshot in place: it writes a new file and renames it
+ * over the old one. Everything after the header is in the byte order of the machine that
+ * wrote it, and every column starts at a multiple of eight bytes, so that the routing
+ * loops read plain aligned values without swapping bytes.
+ *
+ * A snapshot records the length and modification time of the OSM file it was built
+ * from. If the snapshot is missing, was written by a different format version or in the
+ * other byte order, or no longer matches its source file, load() falls back to parsing
+ * the XML and rewrites the snapshot for the next start.
+ *
+ * The snapshot can also be compiled ahead of time, with --ch to include the
+ * contraction hierarchies and --alt to include the landmarks for every metric:
+ * <pre>java GraphSnapshot [--ch] [--alt] path/to/map.osm.xml [path/to/snapshot]</pre>
+ */
+public class GraphSnapshot {
+    /** Identifies snapshot files: "BMAPSNAP" in ASCII. */
+    private static final long MAGIC = 0x424d4150534e4150L;
+    /** Bump whenever the layout written by write(), or the graph built from a map, changes. */
+    static final int VERSION = 11;
+    /**
+     * Bytes of the fixed-size header, which is big-endian: identification, byte order,
+     * source, counts and constants.
+     */
+    private static final int HEADER_BYTES = 76;
+    /** File name suffix of the default snapshot location next to the OSM file. */
+    static final String SUFFIX = ".snapshot";
+
+    private GraphSnapshot() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean withHierarchy = false;
+        boolean withLandmarks = false;
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("--"); first++) {
+            withHierarchy |= args[first].equals("--ch");
+            withLandmarks |= args[first].equals("--alt");
+        }
+        if (args.length <= first) {
+            System.out.println("Usage: java GraphSnapshot [--ch] [--alt] <osm file> "
+                    + "[<snapshot file>]");
+            return;
+        }
+        File source = new File(args[first]);
+        File snapshot = args.length > first + 1 ? new File(args[first + 1])
+                : defaultFile(args[first]);
+        long start = System.currentTimeMillis();
+        GraphDB g = new GraphDB(args[first]);
+        prepare(g, withHierarchy, withLandmarks);
+        write(g, source, snapshot);
+        System.out.println("Wrote " + g.size() + " vertices to " + snapshot + " in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /** Returns the default snapshot location for an OSM file. */
+    static File defaultFile(String dbPath) {
+        return new File(dbPath + SUFFIX);
+    }
+
+    /**
+     * Loads the graph for an OSM file, preferring an up-to-date snapshot next to it.
+     * If there is no usable snapshot, the XML is parsed and a new snapshot is written.
+     * @param dbPath Path to the OSM XML file.
+     * @return The loaded graph.
+     */
+    public static GraphDB load(String dbPath) {
+        return load(dbPath, Router.Algorithm.A_STAR);
+    }
+
+    /**
+     * Loads the graph for an OSM file, preferring an up-to-date snapshot next to it.
+     * If there is no usable snapshot, or it lacks the preprocessing the routing algorithm
+     * needs for any metric, the missing parts are built and a new snapshot is written.
+     * @param dbPath Path to the OSM XML file.
+     * @param algorithm The routing algorithm the graph will be used with.
+     * @return The loaded graph.
+     */
+    public static GraphDB load(String dbPath, Router.Algorithm algorithm) {
+        File source = new File(dbPath);
+        File snapshot = defaultFile(dbPath);
+        GraphDB g = read(snapshot, source);
+        boolean withHierarchy = algorithm == Router.Algorithm.CONTRACTION_HIERARCHY;
+        boolean withLandmarks = algorithm == Router.Algorithm.ALT;
+        if (g != null && (!withHierarchy || !Arrays.asList(g.hierarchies).contains(null))
+                && (!withLandmarks || !Arrays.asList(g.landmarks).contains(null))) {
+            return g;
+        }
+        if (g == null) {
+            g = new GraphDB(dbPath);
+        }
+        prepare(g, withHierarchy, withLandmarks);
+        try {
+            write(g, source, snapshot);
+        } catch (IOException e) {
+            System.out.println("Could not write graph snapshot " + snapshot + ": " + e);
+        }
+        return g;
+    }
+
+    /** Builds the hierarchies and landmarks asked for, under every metric. */
+    private static void prepare(GraphDB g, boolean withHierarchy, boolean withLandmarks) {
+        for (Router.Metric metric : Router.Metric.values()) {
+            if (withHierarchy) {
+                g.contractionHierarchy(metric);
+            }
+            if (withLandmarks) {
+                g.landmarks(metric);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of a graph.
+     * @param g The graph to save.
+     * @param source The OSM file the graph was built from.
+     * @param snapshot The file to write.
+     * @throws IOException If the snapshot could not be written.
+     */
+    static void write(GraphDB g, File source, File snapshot) throws IOException {
+        File partial = new File(snapshot.getPath() + ".tmp");
+        try (Output out = new Output(new FileOutputStream(partial).getChannel())) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(byteOrderCode(ByteOrder.nativeOrder()));
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(g.size());
+            out.writeInt(g.targets.limit());
+            out.writeInt(g.wayNames.length);
+            out.writeInt(g.locations.size());
+            out.writeInt(g.segmentIndex.size());
+            out.writeDouble(g.heuristicScale);
+            out.writeDouble(g.heuristicCosLat);
+            out.writeDouble(g.heuristicSecondsPerMile);
+            out.order(ByteOrder.nativeOrder());
+
+            writeLongs(out, g.ids);
+            writeDoubles(out, g.lons);
+            writeDoubles(out, g.lats);
+            writeInts(out, g.offsets);
+            writeInts(out, g.targets);
+            writeInts(out, g.edgeWays);
+            writeDoubles(out, g.edgeLengths);
+            writeDoubles(out, g.edgeTimes);
+            writeInts(out, g.components);
+            writeInts(out, g.spatialIndex.order());
+            SegmentIndex segments = g.segmentIndex;
+            writeInts(out, segments.edges);
+            writeInts(out, segments.sources);
+            writeDoubles(out, segments.minLons);
+            writeDoubles(out, segments.minLats);
+            writeDoubles(out, segments.maxLons);
+            writeDoubles(out, segments.maxLats);
+            for (int w = 0; w < g.wayNames.length; w++) {
+                writeString(out, g.wayNames[w]);
+            }
+            for (GraphDB.Node location : g.locations) {
+                out.writeLong(location.v);
+                out.writeDouble(location.lon);
+                out.writeDouble(location.lat);
+                writeString(out, location.name);
+            }
+            for (ContractionHierarchy ch : g.hierarchies) {
+                out.writeInt(ch == null ? -1 : ch.upTargets.limit());
+                if (ch != null) {
+                    writeInts(out, ch.ranks);
+                    writeInts(out, ch.upOffsets);
+                    writeInts(out, ch.upTargets);
+                    writeDoubles(out, ch.upWeights);
+                    writeInts(out, ch.upMiddles);
+                }
+            }
+            for (Landmarks lm : g.landmarks) {
+                out.writeInt(lm == null ? -1 : lm.vertices.length);
+                if (lm != null) {
+                    writeInts(out, IntBuffer.wrap(lm.vertices));
+                    for (DoubleBuffer distances : lm.distances) {
+                        writeDoubles(out, distances);
+                    }
+                }
+            }
+        }
+        if (!partial.renameTo(snapshot)) {
+            snapshot.delete();
+            if (!partial.renameTo(snapshot)) {
+                throw new IOException("could not rename " + partial + " to " + snapshot);
+            }
+        }
+    }
+
+    /**
+     * Restores a graph from a snapshot, whose columns then read from the mapped file.
+     * @param snapshot The snapshot file.
+     * @param source The OSM file the snapshot should have been built from.
+     * @return The restored graph, or null if the snapshot is missing, of another
+     * format version or byte order, or stale with respect to the source file.
+     */
+    static GraphDB read(File snapshot, File source) {
+        if (!snapshot.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_BYTES || in.getLong() != MAGIC || in.getInt() != VERSION
+                    || in.getInt() != byteOrderCode(ByteOrder.nativeOrder())
+                    || in.getLong() != source.length()
+                    || in.getLong() != source.lastModified()) {
+                return null;
+            }
+            int n = in.getInt();
+            int halfEdges = in.getInt();
+            int ways = in.getInt();
+            int locations = in.getInt();
+            int segments = in.getInt();
+
+            GraphDB g = new GraphDB();
+            g.heuristicScale = in.getDouble();
+            g.heuristicCosLat = in.getDouble();
+            g.heuristicSecondsPerMile = in.getDouble();
+            in.order(ByteOrder.nativeOrder());
+            g.ids = longs(in, n);
+            g.lons = doubles(in, n);
+            g.lats = doubles(in, n);
+            g.offsets = ints(in, n + 1);
+            g.targets = ints(in, halfEdges);
+            g.edgeWays = ints(in, halfEdges);
+            g.edgeLengths = doubles(in, halfEdges);
+            g.edgeTimes = doubles(in, halfEdges);
+            g.components = ints(in, n);
+            g.spatialIndex = new KdTree(g.lons, g.lats, ints(in, n));
+            int[] levelStarts = SegmentIndex.levelStarts(segments);
+            int nodes = levelStarts[levelStarts.length - 1];
+            g.segmentIndex = new SegmentIndex(g, ints(in, segments), ints(in, segments),
+                    doubles(in, nodes), doubles(in, nodes), doubles(in, nodes),
+                    doubles(in, nodes));
+            g.wayNames = new String[ways];
+            for (int w = 0; w < ways; w++) {
+                g.wayNames[w] = readString(in);
+            }
+            for (int i = 0; i < locations; i++) {
+                GraphDB.Node location = new GraphDB.Node(in.getLong(), in.getDouble(),
+                        in.getDouble());
+                location.setName(readString(in));
+                g.addLocation(location);
+            }
+            for (int m = 0; m < g.hierarchies.length; m++) {
+                int upEdges = in.getInt();
+                if (upEdges >= 0) {
+                    g.hierarchies[m] = new ContractionHierarchy(ints(in, n), ints(in, n + 1),
+                            ints(in, upEdges), doubles(in, upEdges), ints(in, upEdges));
+                }
+            }
+            for (int m = 0; m < g.landmarks.length; m++) {
+                int numLandmarks = in.getInt();
+                if (numLandmarks >= 0) {
+                    int[] vertices = new int[numLandmarks];
+                    ints(in, numLandmarks).get(vertices);
+                    DoubleBuffer[] distances = new DoubleBuffer[numLandmarks];
+                    for (int i = 0; i < numLandmarks; i++) {
+                        distances[i] = doubles(in, n);
+                    }
+                    g.landmarks[m] = new Landmarks(vertices, distances);
+                }
+            }
+            return g;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable graph snapshot " + snapshot + ": " + e);
+            return null;
+        }
+    }
+
+    /** Returns the header's code for a byte order. */
+    private static int byteOrderCode(ByteOrder order) {
+        return order == ByteOrder.BIG_ENDIAN ? 0 : 1;
+    }
+
+    private static void writeLongs(Output out, LongBuffer values) throws IOException {
+        out.align();
+        for (int i = 0; i < values.limit(); i++) {
+            out.writeLong(values.get(i));
+        }
+    }
+
+    private static void writeDoubles(Output out, DoubleBuffer values) throws IOException {
+        out.align();
+        for (int i = 0; i < values.limit(); i++) {
+            out.writeDouble(values.get(i));
+        }
+    }
+
+    private static void writeInts(Output out, IntBuffer values) throws IOException {
+        out.align();
+        for (int i = 0; i < values.limit(); i++) {
+            out.writeInt(values.get(i));
+        }
+    }
+
+    /** Writes a nullable string as its UTF-8 length (-1 for null) followed by its bytes. */
+    private static void writeString(Output out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Skips to the next multiple of eight bytes, where the writer started the next column. */
+    private static void align(ByteBuffer in) {
+        in.position((in.position() + Long.BYTES - 1) & -Long.BYTES);
+    }
+
+    /** Returns the next count longs of a buffer as a view of it, and skips past them. */
+    private static LongBuffer longs(ByteBuffer in, int count) {
+        align(in);
+        LongBuffer values = in.asLongBuffer();
+        values.limit(count);
+        in.position(in.position() + Long.BYTES * count);
+        return values.slice();
+    }
+
+    /** Returns the next count doubles of a buffer as a view of it, and skips past them. */
+    private static DoubleBuffer doubles(ByteBuffer in, int count) {
+        align(in);
+        DoubleBuffer values = in.asDoubleBuffer();
+        values.limit(count);
+        in.position(in.position() + Double.BYTES * count);
+        return values.slice();
+    }
+
+    /** Returns the next count ints of a buffer as a view of it, and skips past them. */
+    private static IntBuffer ints(ByteBuffer in, int count) {
+        align(in);
+        IntBuffer values = in.asIntBuffer();
+        values.limit(count);
+        in.position(in.position() + Integer.BYTES * count);
+        return values.slice();
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Buffers the bytes of a snapshot on their way to its file. */
+    private static final class Output implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        /** Bytes already handed to the channel. */
+        private long flushed;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Sets the byte order of the values written from now on. */
+        void order(ByteOrder order) {
+            buffer.order(order);
+        }
+
+        void writeLong(long value) throws IOException {
+            room(Long.BYTES).putLong(value);
+        }
+
+        void writeInt(int value) throws IOException {
+            room(Integer.BYTES).putInt(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            room(Double.BYTES).putDouble(value);
+        }
+
+        void write(byte[] bytes) throws IOException {
+            for (int i = 0; i < bytes.length; ) {
+                int count = Math.min(bytes.length - i, room(1).remaining());
+                buffer.put(bytes, i, count);
+                i += count;
+            }
+        }
+
+        /** Pads with zeros to the next multiple of eight bytes from the start of the file. */
+        void align() throws IOException {
+            while ((flushed + buffer.position()) % Long.BYTES != 0) {
+                room(1).put((byte) 0);
+            }
+        }
+
+        /** Returns the buffer, flushed first if it has fewer than bytes left. */
+        private ByteBuffer room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values in power-of-two buckets, for aggregating
+ * per-query statistics across server threads. Recording a value costs a few atomic
+ * updates; percentiles are read off the buckets, so they are upper bounds accurate to
+ * within a factor of two.
+ */
+final class Histogram {
+    /** Bucket b counts the values with b significant bits: 0, then [2^(b-1), 2^b). */
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     * @param value The value; negative values are recorded as 0.
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /** Returns the number of values recorded. */
+    long count() {
+        long count = 0;
+        for (int b = 0; b < buckets.length(); b++) {
+            count += buckets.get(b);
+        }
+        return count;
+    }
+
+    /**
+     * Returns an upper bound on the given quantile of the recorded values: the top of the
+     * bucket holding it, or the largest value recorded if that is smaller.
+     * @param quantile The quantile, between 0 and 1.
+     * @return The bound, or 0 if nothing has been recorded.
+     */
+    long percentile(double quantile) {
+        long count = count();
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int b = 0; b < buckets.length(); b++) {
+            seen += buckets.get(b);
+            if (seen >= rank && seen > 0) {
+                long top = b == Long.SIZE - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+                return Math.min(top, max.get());
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the count, mean, maximum and main percentiles, keyed for a JSON response. */
+    Map<String, Object> summary() {
+        long count = count();
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("mean", count == 0 ? 0 : (double) sum.sum() / count);
+        summary.put("p50", percentile(0.5));
+        summary.put("p90", percentile(0.9));
+        summary.put("p99", percentile(0.99));
+        summary.put("max", max.get());
+        return summary;
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap over the integers 0 .. capacity - 1, each with a double priority.
+ * Unlike MinPQ it supports changing the priority of an element already in the heap,
+ * so graph searches can keep one entry per vertex instead of pushing duplicates.
+ *
+ * clear() only touches the elements still in the heap, so a heap sized for the whole
+ * graph can be reused by many small searches. The heap also counts its pushes and pops
+ * since the last clear(), which query statistics read after a search.
+ */
+class IndexMinHeap {
+    /** heap[0 .. size - 1] holds the elements in heap order. */
+    private final int[] heap;
+    /** Position of each element in heap, or -1 if it is not in the heap. */
+    private final int[] position;
+    private final double[] priorities;
+    private int size;
+    /** Operations since the last clear(). */
+    private int pushes;
+    private int pops;
+
+    /**
+     * Creates an empty heap.
+     * @param capacity One more than the largest element the heap will hold.
+     */
+    IndexMinHeap(int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        priorities = new double[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int i) {
+        return position[i] >= 0;
+    }
+
+    /**
+     * Inserts an element, or changes its priority if it is already in the heap.
+     * @param i The element.
+     * @param priority Its new priority.
+     */
+    void push(int i, double priority) {
+        pushes += 1;
+        if (position[i] < 0) {
+            position[i] = size;
+            heap[size++] = i;
+            priorities[i] = priority;
+            siftUp(position[i]);
+        } else if (priority < priorities[i]) {
+            priorities[i] = priority;
+            siftUp(position[i]);
+        } else {
+            priorities[i] = priority;
+            siftDown(position[i]);
+        }
+    }
+
+    /** Returns the element with the smallest priority without removing it. */
+    int peek() {
+        return heap[0];
+    }
+
+    /** Returns the smallest priority in the heap. */
+    double peekPriority() {
+        return priorities[heap[0]];
+    }
+
+    /** Removes and returns the element with the smallest priority. */
+    int pop() {
+        pops += 1;
+        int min = heap[0];
+        position[min] = -1;
+        size -= 1;
+        if (size > 0) {
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    /** Returns the number of pushes, including priority changes, since the last clear(). */
+    int pushes() {
+        return pushes;
+    }
+
+    /** Returns the number of pops since the last clear(). */
+    int pops() {
+        return pops;
+    }
+
+    /** Removes every element and resets the operation counts. */
+    void clear() {
+        for (int k = 0; k < size; k++) {
+            position[heap[k]] = -1;
+        }
+        size = 0;
+        pushes = 0;
+        pops = 0;
+    }
+
+    private void siftUp(int k) {
+        int i = heap[k];
+        double p = priorities[i];
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            int j = heap[parent];
+            if (priorities[j] <= p) {
+                break;
+            }
+            heap[k] = j;
+            position[j] = k;
+            k = parent;
+        }
+        heap[k] = i;
+        position[i] = k;
+    }
+
+    private void siftDown(int k) {
+        int i = heap[k];
+        double p = priorities[i];
+        while (true) {
+            int child = 2 * k + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && priorities[heap[child + 1]] < priorities[heap[child]]) {
+                child += 1;
+            }
+            int j = heap[child];
+            if (p <= priorities[j]) {
+                break;
+            }
+            heap[k] = j;
+            position[j] = k;
+            k = child;
+        }
+        heap[k] = i;
+        position[i] = k;
+    }
+}
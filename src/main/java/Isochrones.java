@@ -0,0 +1,229 @@
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers reachability queries: which vertices can be reached from a location within a
+ * distance or travel time budget, and the boundary polygon around them.
+ *
+ * Each query is a Dijkstra search from the vertex closest to the location that stops at
+ * the budget. Searches run on the calling thread's own search state, so concurrent
+ * queries share nothing and proceed in parallel. Results are cached by snapped origin,
+ * metric and budget bucket: a search always runs to the top of its bucket and records the
+ * vertices in the order they were settled, so any budget in the same bucket is answered by
+ * the prefix of vertices within it. A search with a large budget can settle most of the
+ * graph, so the cache is bounded by the settled vertices its searches hold rather than by
+ * their number. Like RouteCache, an instance belongs to one graph.
+ */
+public class Isochrones {
+    /** Width in miles of the distance budget buckets results are cached by. */
+    static final double BUDGET_BUCKET = 0.25;
+    /** Width in seconds of the travel time budget buckets results are cached by. */
+    static final double TIME_BUDGET_BUCKET = 60;
+
+    private final GraphDB graph;
+    /**
+     * Searches by origin index times Metric.COUNT plus metric ordinal (high 32 bits) and
+     * budget bucket (low 32 bits).
+     */
+    private final LinkedHashMap<Long, Search> searches = new LinkedHashMap<>(16, 0.75f, true);
+    private final long capacity;
+    /** Settled vertices recorded by the cached searches together. */
+    private long stored;
+
+    /**
+     * Creates an empty reachability cache.
+     * @param graph The graph to search.
+     * @param capacity The most settled vertices the cached searches may hold together. A
+     *                 search that settles more than this is answered but not cached.
+     */
+    public Isochrones(GraphDB graph, long capacity) {
+        this.graph = graph;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Finds everything reachable from a location within a budget.
+     * @param lon The longitude of the location.
+     * @param lat The latitude of the location.
+     * @param budget The largest road distance in miles to travel.
+     * @return The reachable vertices and their boundary; both are empty if the graph has
+     * no vertices or the budget is negative.
+     */
+    public Reachable reachable(double lon, double lat, double budget) {
+        return reachable(lon, lat, budget, Router.Metric.SHORTEST);
+    }
+
+    /**
+     * Finds everything reachable from a location within a budget under a metric.
+     * @param lon The longitude of the location.
+     * @param lat The latitude of the location.
+     * @param budget The largest road distance in miles (SHORTEST) or travel time in
+     *               seconds (FASTEST) to travel.
+     * @param metric What the budget measures.
+     * @return The reachable vertices and their boundary; both are empty if the graph has
+     * no vertices or the budget is negative.
+     */
+    public Reachable reachable(double lon, double lat, double budget, Router.Metric metric) {
+        int origin = graph.closestIndex(lon, lat);
+        if (origin < 0 || !(budget >= 0)) {
+            return new Reachable(new ArrayList<>(), new ArrayList<>());
+        }
+        double width = metric == Router.Metric.FASTEST ? TIME_BUDGET_BUCKET : BUDGET_BUCKET;
+        int bucket = (int) Math.min(Math.ceil(budget / width), Integer.MAX_VALUE);
+        long originKey = (long) origin * Router.Metric.COUNT + metric.ordinal();
+        Long key = (originKey << 32) | bucket;
+        Search search;
+        synchronized (searches) {
+            search = searches.get(key);
+        }
+        if (search == null) {
+            search = search(origin, bucket * width, graph.edgeWeights(metric));
+            store(key, search);
+        }
+
+        int count = search.settledWithin(budget);
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(graph.idAt(search.vertices[i]));
+        }
+        return new Reachable(ids, boundary(search.vertices, count));
+    }
+
+    /** Caches a search, evicting the least recently used while over the capacity. */
+    private void store(Long key, Search search) {
+        if (search.vertices.length > capacity) {
+            return;
+        }
+        synchronized (searches) {
+            Search replaced = searches.put(key, search);
+            stored += search.vertices.length - (replaced == null ? 0 : replaced.vertices.length);
+            Iterator<Map.Entry<Long, Search>> eldest = searches.entrySet().iterator();
+            while (stored > capacity && eldest.hasNext()) {
+                stored -= eldest.next().getValue().vertices.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Returns the settled vertices the cached searches hold together. */
+    long stored() {
+        synchronized (searches) {
+            return stored;
+        }
+    }
+
+    /** Runs Dijkstra from origin, settling every vertex within budget. */
+    private Search search(int origin, double budget, DoubleBuffer edgeWeights) {
+        SearchState state = Router.searchStates(graph)[0];
+        state.start();
+        state.reach(origin, 0, -1, -1, 0);
+        int[] vertices = new int[64];
+        double[] distances = new double[64];
+        int count = 0;
+        while (!state.open.isEmpty()) {
+            int v = state.open.pop();
+            double traveled = state.dist(v);
+            if (count == vertices.length) {
+                vertices = Arrays.copyOf(vertices, count * 2);
+                distances = Arrays.copyOf(distances, count * 2);
+            }
+            vertices[count] = v;
+            distances[count] = traveled;
+            count += 1;
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                int w = graph.edgeTarget(e);
+                double distance = traveled + edgeWeights.get(e);
+                if (distance <= budget && distance < state.dist(w)) {
+                    state.reach(w, distance, v, e, distance);
+                }
+            }
+        }
+        return new Search(Arrays.copyOf(vertices, count), Arrays.copyOf(distances, count));
+    }
+
+    /**
+     * Returns the convex hull of the first count vertices as a closed ring of
+     * [lon, lat] points, found with Andrew's monotone chain.
+     */
+    private List<double[]> boundary(int[] vertices, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = vertices[i];
+        }
+        Arrays.sort(order, (v, w) -> graph.lonAt(v) != graph.lonAt(w)
+                ? Double.compare(graph.lonAt(v), graph.lonAt(w))
+                : Double.compare(graph.latAt(v), graph.latAt(w)));
+        int[] hull = new int[2 * count + 1];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            while (size >= 2 && cross(hull[size - 2], hull[size - 1], order[i]) <= 0) {
+                size -= 1;
+            }
+            hull[size++] = order[i];
+        }
+        for (int i = count - 2, lower = size + 1; i >= 0; i--) {
+            while (size >= lower && cross(hull[size - 2], hull[size - 1], order[i]) <= 0) {
+                size -= 1;
+            }
+            hull[size++] = order[i];
+        }
+        List<double[]> ring = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ring.add(new double[] {graph.lonAt(hull[i]), graph.latAt(hull[i])});
+        }
+        return ring;
+    }
+
+    /** Returns the cross product of (b - a) and (c - a); positive if a, b, c turn left. */
+    private double cross(int a, int b, int c) {
+        return (graph.lonAt(b) - graph.lonAt(a)) * (graph.latAt(c) - graph.latAt(a))
+                - (graph.latAt(b) - graph.latAt(a)) * (graph.lonAt(c) - graph.lonAt(a));
+    }
+
+    /** The vertices one search settled, in order of increasing distance. */
+    private static class Search {
+        final int[] vertices;
+        final double[] distances;
+
+        Search(int[] vertices, double[] distances) {
+            this.vertices = vertices;
+            this.distances = distances;
+        }
+
+        /** Returns the number of settled vertices within budget. */
+        int settledWithin(double budget) {
+            int lo = 0;
+            int hi = distances.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (distances[mid] <= budget) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /** The answer to a reachability query. */
+    public static class Reachable {
+        /** The ids of the reachable vertices, nearest first. */
+        public final List<Long> vertices;
+        /**
+         * The convex hull of the reachable vertices as [lon, lat] points; the first point
+         * is repeated at the end when there are at least two.
+         */
+        public final List<double[]> boundary;
+
+        Reachable(List<Long> vertices, List<double[]> boundary) {
+            this.vertices = vertices;
+            this.boundary = boundary;
+        }
+    }
+}
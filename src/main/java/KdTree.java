@@ -0,0 +1,316 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A static 2-d tree over the vertices of a GraphDB, used to answer nearest-vertex,
+ * k-nearest and radius queries without scanning every vertex.
+ *
+ * The tree is implicit: it is a permutation of the vertex indices in which the
+ * median of every range [lo, hi) sits at (lo + hi) / 2, splitting the range on
+ * longitude at even depths and on latitude at odd depths. Distances are the same
+ * great-circle distances GraphDB.distance computes, and subtrees are only pruned
+ * with exact lower bounds on that distance, so the results are identical to a
+ * linear scan (ties are broken towards the smaller vertex index).
+ */
+public class KdTree {
+    /** Radius of the earth in miles, matching GraphDB.distance. */
+    private static final double EARTH_RADIUS = 3963;
+    /** Slack applied to the lower bounds so that rounding never prunes a tie. */
+    private static final double BOUND_SLACK = 1 - 1e-9;
+
+    private final DoubleBuffer lons;
+    private final DoubleBuffer lats;
+    /** Vertex indices in tree order. */
+    private final IntBuffer tree;
+
+    /**
+     * Builds a tree over the given coordinate columns.
+     * @param lons Longitude of every vertex, by vertex index.
+     * @param lats Latitude of every vertex, by vertex index.
+     */
+    public KdTree(double[] lons, double[] lats) {
+        this(DoubleBuffer.wrap(lons), DoubleBuffer.wrap(lats));
+    }
+
+    /**
+     * Builds a tree over the given coordinate columns.
+     * @param lons Longitude of every vertex, by vertex index.
+     * @param lats Latitude of every vertex, by vertex index.
+     */
+    KdTree(DoubleBuffer lons, DoubleBuffer lats) {
+        this.lons = lons;
+        this.lats = lats;
+        int[] order = new int[lons.limit()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        build(order, 0, order.length, 0);
+        this.tree = IntBuffer.wrap(order);
+    }
+
+    /**
+     * Restores a tree previously built over the same coordinate columns.
+     * @param lons Longitude of every vertex, by vertex index.
+     * @param lats Latitude of every vertex, by vertex index.
+     * @param tree The vertex order returned by order() on the original tree.
+     */
+    KdTree(DoubleBuffer lons, DoubleBuffer lats, IntBuffer tree) {
+        this.lons = lons;
+        this.lats = lats;
+        this.tree = tree;
+    }
+
+    /** Returns the vertex indices in tree order, for saving the tree. */
+    IntBuffer order() {
+        return tree;
+    }
+
+    /** Returns the number of vertices in the tree. */
+    public int size() {
+        return tree.limit();
+    }
+
+    /**
+     * Returns the index of the vertex closest to the given point.
+     * @param lon The query longitude.
+     * @param lat The query latitude.
+     * @return The closest vertex index, or -1 if the tree is empty.
+     */
+    public int nearest(double lon, double lat) {
+        int[] best = nearest(lon, lat, 1);
+        return best.length == 0 ? -1 : best[0];
+    }
+
+    /**
+     * Returns the indices of the k vertices closest to the given point.
+     * @param lon The query longitude.
+     * @param lat The query latitude.
+     * @param k The number of vertices to return.
+     * @return Up to k vertex indices, ordered from closest to farthest.
+     */
+    public int[] nearest(double lon, double lat, int k) {
+        Query found = new Query(lon, lat, Math.min(k, size()));
+        if (found.capacity > 0) {
+            nearest(0, size(), 0, found);
+        }
+        return found.sorted();
+    }
+
+    /**
+     * Returns the indices of all vertices within the given distance of a point.
+     * @param lon The query longitude.
+     * @param lat The query latitude.
+     * @param radius The maximum great-circle distance in miles.
+     * @return The matching vertex indices, ordered from closest to farthest.
+     */
+    public int[] within(double lon, double lat, double radius) {
+        Query found = new Query(lon, lat, size());
+        within(0, size(), 0, radius, found);
+        return found.sorted();
+    }
+
+    private void build(int[] order, int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(order, lo, hi - 1, mid, depth % 2 == 0 ? lons : lats);
+        build(order, lo, mid, depth + 1);
+        build(order, mid + 1, hi, depth + 1);
+    }
+
+    /** Quickselect: rearranges order[lo..hi] so that order[k] holds the median on axis. */
+    private static void select(int[] order, int lo, int hi, int k, DoubleBuffer axis) {
+        while (lo < hi) {
+            double pivot = axis.get(order[(lo + hi) >>> 1]);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (axis.get(order[i]) < pivot) {
+                    i++;
+                }
+                while (axis.get(order[j]) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i++] = order[j];
+                    order[j--] = swap;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void nearest(int lo, int hi, int depth, Query found) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int v = tree.get(mid);
+        found.offer(v, GraphDB.distance(found.lon, found.lat, lons.get(v), lats.get(v)));
+        boolean byLon = depth % 2 == 0;
+        double delta = byLon ? found.lon - lons.get(v) : found.lat - lats.get(v);
+        if (delta < 0) {
+            nearest(lo, mid, depth + 1, found);
+            if (found.planeBound(byLon, delta) <= found.bound) {
+                nearest(mid + 1, hi, depth + 1, found);
+            }
+        } else {
+            nearest(mid + 1, hi, depth + 1, found);
+            if (found.planeBound(byLon, delta) <= found.bound) {
+                nearest(lo, mid, depth + 1, found);
+            }
+        }
+    }
+
+    private void within(int lo, int hi, int depth, double radius, Query found) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int v = tree.get(mid);
+        double d = GraphDB.distance(found.lon, found.lat, lons.get(v), lats.get(v));
+        if (d <= radius) {
+            found.add(v, d);
+        }
+        boolean byLon = depth % 2 == 0;
+        double delta = byLon ? found.lon - lons.get(v) : found.lat - lats.get(v);
+        double bound = found.planeBound(byLon, delta);
+        if (delta < 0 || bound <= radius) {
+            within(lo, mid, depth + 1, radius, found);
+        }
+        if (delta >= 0 || bound <= radius) {
+            within(mid + 1, hi, depth + 1, radius, found);
+        }
+    }
+
+    /**
+     * The state of one query: the query point and a bounded collection of the best
+     * candidates seen so far, kept as a max-heap on distance so the current worst
+     * candidate can be replaced in logarithmic time.
+     */
+    private static class Query {
+        final double lon;
+        final double lat;
+        final double cosLat;
+        final int capacity;
+        int[] vertices;
+        double[] distances;
+        int size;
+        /** Distance a candidate must not exceed to be of interest. */
+        double bound = Double.POSITIVE_INFINITY;
+
+        Query(double lon, double lat, int capacity) {
+            this.lon = lon;
+            this.lat = lat;
+            this.cosLat = Math.cos(Math.toRadians(lat));
+            this.capacity = capacity;
+            int initial = Math.max(1, Math.min(capacity, 16));
+            vertices = new int[initial];
+            distances = new double[initial];
+        }
+
+        /**
+         * Returns a lower bound on the distance from the query point to any point on
+         * the far side of a splitting line. A parallel is at least the meridian arc
+         * away; a meridian is at least the great-circle distance to its plane away.
+         */
+        double planeBound(boolean byLon, double deltaDegrees) {
+            double delta = Math.toRadians(Math.abs(deltaDegrees));
+            if (!byLon) {
+                return EARTH_RADIUS * delta * BOUND_SLACK;
+            }
+            if (delta >= Math.PI / 2) {
+                return 0;
+            }
+            return EARTH_RADIUS * Math.asin(Math.sin(delta) * cosLat) * BOUND_SLACK;
+        }
+
+        /** Offers a candidate to a k-nearest query, evicting the worst if full. */
+        void offer(int v, double d) {
+            if (size < capacity) {
+                add(v, d);
+                if (size == capacity) {
+                    bound = distances[0];
+                }
+            } else if (worse(vertices[0], distances[0], v, d)) {
+                vertices[0] = v;
+                distances[0] = d;
+                siftDown(0);
+                bound = distances[0];
+            }
+        }
+
+        /** Adds a candidate unconditionally. */
+        void add(int v, double d) {
+            if (size == vertices.length) {
+                vertices = Arrays.copyOf(vertices, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            vertices[size] = v;
+            distances[size] = d;
+            siftUp(size++);
+        }
+
+        /** Returns the candidates ordered by distance, then by vertex index. */
+        int[] sorted() {
+            int[] result = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                result[i] = vertices[0];
+                vertices[0] = vertices[i];
+                distances[0] = distances[i];
+                size = i;
+                siftDown(0);
+            }
+            return result;
+        }
+
+        /** Whether candidate (v1, d1) ranks after candidate (v2, d2). */
+        private static boolean worse(int v1, double d1, int v2, double d2) {
+            return d1 > d2 || (d1 == d2 && v1 > v2);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!worse(vertices[i], distances[i], vertices[parent], distances[parent])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && worse(vertices[child + 1], distances[child + 1],
+                        vertices[child], distances[child])) {
+                    child += 1;
+                }
+                if (!worse(vertices[child], distances[child], vertices[i], distances[i])) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int v = vertices[i];
+            vertices[i] = vertices[j];
+            vertices[j] = v;
+            double d = distances[i];
+            distances[i] = distances[j];
+            distances[j] = d;
+        }
+    }
+}
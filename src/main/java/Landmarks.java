@@ -0,0 +1,154 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Landmark distances for the ALT (A*, landmarks, triangle inequality) heuristic.
+ *
+ * A handful of landmark vertices are chosen near the edges of the map, and the road
+ * distance from every landmark to every vertex is computed once with Dijkstra. By the
+ * triangle inequality, |d(L, t) - d(L, v)| is a lower bound on the road distance from v
+ * to t for any landmark L, and the largest of these bounds is usually much tighter than
+ * the straight-line distance wherever the roads have to go around something.
+ *
+ * Landmarks are picked with the farthest strategy: the first one is the vertex farthest
+ * from a start in the largest connected component, and every further one is the vertex
+ * farthest from all the landmarks chosen so far. A landmark only bounds distances within
+ * its own component, so all of them are kept in the largest one rather than wherever the
+ * first vertex happens to lie. Roads are undirected, so the distances to a landmark equal
+ * the distances from it and one array per landmark serves both search directions.
+ */
+public class Landmarks {
+    /** Number of landmarks chosen by build(). */
+    static final int DEFAULT_COUNT = 16;
+
+    /* These are package-private so that GraphSnapshot can save and restore them. */
+    /** Vertex index of each landmark. */
+    final int[] vertices;
+    /**
+     * Road distance from landmark i to vertex v at distances[i].get(v), measured in the
+     * edge weights the landmarks were built with, or infinity if v cannot be reached.
+     */
+    final DoubleBuffer[] distances;
+
+    Landmarks(int[] vertices, DoubleBuffer[] distances) {
+        this.vertices = vertices;
+        this.distances = distances;
+    }
+
+    /**
+     * Chooses landmarks for a graph and computes their distances.
+     * @param g The frozen graph.
+     * @param count The number of landmarks to choose.
+     * @param edgeWeights The weight of every half-edge, such as GraphDB.edgeWeights gives.
+     * @return The landmarks, possibly fewer than count on a tiny graph.
+     */
+    static Landmarks build(GraphDB g, int count, DoubleBuffer edgeWeights) {
+        int n = g.size();
+        if (n == 0) {
+            return new Landmarks(new int[0], new DoubleBuffer[0]);
+        }
+        IndexMinHeap heap = new IndexMinHeap(n);
+        int[] chosen = new int[count];
+        double[][] dist = new double[count][];
+        /* nearest[v] is the distance from v to the closest landmark chosen so far. */
+        double[] nearest = distancesFrom(g, edgeWeights, largestComponentVertex(g), heap);
+        int k = 0;
+        while (k < count) {
+            int next = farthest(nearest);
+            if (next < 0 || (k > 0 && nearest[next] == 0)) {
+                break;
+            }
+            chosen[k] = next;
+            dist[k] = distancesFrom(g, edgeWeights, next, heap);
+            if (k == 0) {
+                /* Vertices outside the largest component stay infinitely far. */
+                nearest = dist[0].clone();
+            } else {
+                for (int v = 0; v < n; v++) {
+                    nearest[v] = Math.min(nearest[v], dist[k][v]);
+                }
+            }
+            k += 1;
+        }
+        DoubleBuffer[] distances = new DoubleBuffer[k];
+        for (int i = 0; i < k; i++) {
+            distances[i] = DoubleBuffer.wrap(dist[i]);
+        }
+        return new Landmarks(Arrays.copyOf(chosen, k), distances);
+    }
+
+    /**
+     * Returns a lower bound on the road distance between two vertices, in the units of
+     * the edge weights the landmarks were built with.
+     * @param v The index of the vertex being estimated.
+     * @param t The index of the target vertex.
+     * @return The largest landmark bound, or 0 if no landmark reaches both vertices.
+     */
+    double lowerBound(int v, int t) {
+        double bound = 0;
+        for (DoubleBuffer d : distances) {
+            double difference = Math.abs(d.get(t) - d.get(v));
+            /* Infinite distances give NaN or infinity here, neither of which is a bound. */
+            if (difference > bound && difference != Double.POSITIVE_INFINITY) {
+                bound = difference;
+            }
+        }
+        /* The last factor absorbs the rounding error of subtracting two path sums. */
+        return bound * (1 - 1e-12);
+    }
+
+    /** Returns the first vertex of the connected component with the most vertices. */
+    private static int largestComponentVertex(GraphDB g) {
+        int n = g.size();
+        /* Component labels are numbered from 0, so there are at most n of them. */
+        int[] sizes = new int[n];
+        int largest = g.componentOf(0);
+        for (int v = 0; v < n; v++) {
+            int c = g.componentOf(v);
+            sizes[c] += 1;
+            if (sizes[c] > sizes[largest]) {
+                largest = c;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (g.componentOf(v) == largest) {
+                return v;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the vertex with the largest finite distance, or -1 if there is none. */
+    private static int farthest(double[] distances) {
+        int best = -1;
+        for (int v = 0; v < distances.length; v++) {
+            if (distances[v] != Double.POSITIVE_INFINITY
+                    && (best < 0 || distances[v] > distances[best])) {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /** Runs Dijkstra from a source vertex, returning the distance to every vertex. */
+    private static double[] distancesFrom(GraphDB g, DoubleBuffer edgeWeights, int source,
+                                          IndexMinHeap heap) {
+        double[] dist = new double[g.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        heap.clear();
+        heap.push(source, 0);
+        while (!heap.isEmpty()) {
+            int v = heap.pop();
+            for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+                int w = g.edgeTarget(e);
+                double candidate = dist[v] + edgeWeights.get(e);
+                if (candidate < dist[w]) {
+                    dist[w] = candidate;
+                    heap.push(w, candidate);
+                }
+            }
+        }
+        return dist;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * An open-addressing hash map from long keys to int values, used where a
+ * HashMap&lt;Long, Integer&gt; would box every OSM id. Uses linear probing and grows
+ * when it is half full. Entries cannot be removed.
+ */
+public class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] filled;
+    private int size;
+    private int mask;
+    /** 64 minus the number of bits in a slot index, for Fibonacci hashing. */
+    private int shift;
+
+    /**
+     * Creates an empty map.
+     * @param expectedSize The number of entries the map should hold without resizing.
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    /** Returns the number of entries in the map. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns whether the map contains the key. */
+    public boolean containsKey(long key) {
+        return filled[find(key)];
+    }
+
+    /**
+     * Returns the value associated with the key.
+     * @param key The key.
+     * @param missing The value to return if the key is not in the map.
+     * @return The associated value, or missing.
+     */
+    public int get(long key, int missing) {
+        int slot = find(key);
+        return filled[slot] ? values[slot] : missing;
+    }
+
+    /**
+     * Associates the value with the key, replacing any previous value.
+     * @param key The key.
+     * @param value The value.
+     */
+    public void put(long key, int value) {
+        int slot = find(key);
+        if (!filled[slot]) {
+            insert(slot, key, value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Associates the value with the key if the key is not already in the map.
+     * @param key The key.
+     * @param value The value.
+     * @return The existing value, or value if the key was absent and has been added.
+     */
+    public int putIfAbsent(long key, int value) {
+        int slot = find(key);
+        if (filled[slot]) {
+            return values[slot];
+        }
+        insert(slot, key, value);
+        return value;
+    }
+
+    private void insert(int slot, long key, int value) {
+        keys[slot] = key;
+        values[slot] = value;
+        filled[slot] = true;
+        size += 1;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    /** Returns the slot holding key, or the empty slot where it would be inserted. */
+    private int find(long key) {
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        while (filled[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        filled = new boolean[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldFilled = filled;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldFilled[i]) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                filled[slot] = true;
+            }
+        }
+    }
+}
@@ -1,18 +1,29 @@
 import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.BasicStroke;
-import java.awt.Color;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 
 
 /* Maven is used to pull in these dependencies. */
@@ -40,10 +51,12 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
-    /** Route stroke information: typically roads are not more than 5px wide. */
-    public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
-    /** Route stroke information: Cyan with half transparency. */
-    public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
+    /** HTTP status for binary raster requests whose query fails. */
+    private static final int NO_CONTENT_RESPONSE = 204;
+    /** Response header carrying a binary raster's bounding box, depth and size as JSON. */
+    private static final String RASTER_HEADER = "X-Raster";
+    /** HTTP status for route requests the server has no capacity or time left for. */
+    private static final int BUSY_RESPONSE = 503;
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
     /**
@@ -51,6 +64,76 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /**
+     * System property choosing the deployment's routing algorithm: "astar" (the default),
+     * "alt" for A* with landmarks or "ch" for contraction hierarchies. Landmarks and
+     * hierarchies are built at startup if the graph snapshot does not include them yet.
+     **/
+    private static final String ROUTING_ALGORITHM_PROPERTY = "bearmaps.routing";
+    /**
+     * System property turning on routing metrics: with "true", every route request records
+     * its search statistics and timings into the histograms served at /metrics. Off by
+     * default, in which case route requests read no clocks unless they ask for debug.
+     **/
+    private static final String METRICS_PROPERTY = "bearmaps.metrics";
+    /**
+     * System property giving the number of threads routes are computed on, by default the
+     * number of processors. Route searches run on these threads rather than the request
+     * threads, so a burst of expensive queries cannot occupy every request thread, and
+     * only these threads hold per-thread search state. Batch route and matrix requests
+     * run on a separate pool of as many threads.
+     **/
+    private static final String ROUTE_THREADS_PROPERTY = "bearmaps.route.threads";
+    /**
+     * System property giving the milliseconds a route request may wait for its route,
+     * DEFAULT_ROUTE_TIMEOUT_MS by default. A search no request is waiting for any more is
+     * interrupted.
+     **/
+    private static final String ROUTE_TIMEOUT_PROPERTY = "bearmaps.route.timeout";
+    private static final long DEFAULT_ROUTE_TIMEOUT_MS = 5000;
+    /**
+     * System property giving the milliseconds a batch route request may run,
+     * DEFAULT_BATCH_TIMEOUT_MS by default. After that the batch starts no further routes,
+     * and its response ends with the routes found so far.
+     **/
+    private static final String BATCH_TIMEOUT_PROPERTY = "bearmaps.routes.timeout";
+    private static final long DEFAULT_BATCH_TIMEOUT_MS = 30000;
+    /**
+     * System property giving the megabytes of decoded tile pixels kept in memory for
+     * rastering, DEFAULT_TILE_CACHE_MB by default. Tiles down to PINNED_TILE_DEPTH are kept
+     * in addition to these and never evicted.
+     **/
+    private static final String TILE_CACHE_PROPERTY = "bearmaps.tiles.cache";
+    private static final long DEFAULT_TILE_CACHE_MB = 256;
+    /**
+     * System property giving the deepest tile depth loaded into the tile cache at startup,
+     * DEFAULT_TILE_WARM_DEPTH by default; -1 skips the warm-up.
+     **/
+    private static final String TILE_WARM_PROPERTY = "bearmaps.tiles.warm";
+    /** Depths 0 to 3: 85 tiles, 21 MB of pixels. */
+    private static final int DEFAULT_TILE_WARM_DEPTH = 3;
+    /**
+     * System property turning prefetching of the tiles around each raster served on ("true",
+     * the default) or off.
+     **/
+    private static final String TILE_PREFETCH_PROPERTY = "bearmaps.tiles.prefetch";
+    /**
+     * System property that, set to "true", also prefetches the tiles one depth down under
+     * each raster served. Off by default, as it loads four times the raster's tiles.
+     **/
+    private static final String TILE_PREFETCH_ZOOM_PROPERTY = "bearmaps.tiles.prefetch.zoom";
+    /**
+     * System property giving the megabytes of finished, encoded rasters kept for repeated
+     * viewports, DEFAULT_RASTER_CACHE_MB by default.
+     **/
+    private static final String RASTER_CACHE_PROPERTY = "bearmaps.rasters.cache";
+    private static final long DEFAULT_RASTER_CACHE_MB = 64;
+    /** Deepest tile depth kept in memory for good: 20 tiles, 5 MB of pixels. */
+    private static final int PINNED_TILE_DEPTH = 2;
+    /** Route computations that may wait for a thread; requests beyond these are refused. */
+    private static final int ROUTE_QUEUE_CAPACITY = 256;
+    /** Batch route and matrix requests that may run at once; further ones are refused. */
+    private static final int MAX_BATCHES_IN_FLIGHT = 2;
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -69,17 +152,76 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
-
     /**
-     * The result of rastering must be a map containing all of the
-     * fields listed in the comments for getMapRaster in Rasterer.java.
+     * Optional route request parameter naming the search algorithm to use for that request,
+     * as accepted by Router.Algorithm.forName. Defaults to the server's configured algorithm.
+     **/
+    private static final String ROUTE_ALGORITHM_PARAM = "algorithm";
+    /**
+     * Optional route, matrix and reachability request parameter naming what to minimize,
+     * as accepted by Router.Metric.forName. Defaults to "shortest".
+     **/
+    private static final String METRIC_PARAM = "metric";
+    /**
+     * Optional route request parameter giving the raster depth the client draws the route
+     * at. The returned polyline is then simplified to what is visible at that depth;
+     * without it every vertex is included.
+     **/
+    private static final String ROUTE_DEPTH_PARAM = "depth";
+    /**
+     * Optional route request parameter that, set to "true", adds the query's search
+     * statistics and stage timings to the response under "stats".
      **/
-    private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
-        "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
+    private static final String DEBUG_PARAM = "debug";
+    /**
+     * Each matrix request to the server will have the following parameters, each a
+     * comma-separated list of longitude, latitude pairs: <br>
+     * origins : the locations distances are measured from, <br>
+     * destinations : the locations distances are measured to.
+     **/
+    private static final String[] REQUIRED_MATRIX_REQUEST_PARAMS = {"origins", "destinations"};
+    /** Largest number of origins, and of destinations, a matrix request may have. */
+    private static final int MAX_MATRIX_LOCATIONS = 1000;
+    /**
+     * Each batch route request to the server will have the following parameters, each a
+     * comma-separated list of longitude, latitude pairs, as query or form parameters: <br>
+     * starts : the start locations, <br>
+     * ends : the destination locations, one for each start.
+     **/
+    private static final String[] REQUIRED_BATCH_REQUEST_PARAMS = {"starts", "ends"};
+    /** Largest number of routes a batch route request may ask for. */
+    private static final int MAX_BATCH_ROUTES = 10000;
+    /**
+     * Each reachability request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lon : origin longitude, <br> lat : origin latitude, <br>
+     * budget : largest road distance to travel, in miles, or with metric=fastest the
+     * largest travel time, in seconds.
+     **/
+    private static final String[] REQUIRED_REACHABLE_REQUEST_PARAMS = {"lon", "lat", "budget"};
+    /**
+     * Settled vertices, about twelve bytes each, kept by the reachability searches cached
+     * for repeated reachability requests.
+     */
+    private static final long ISOCHRONE_CACHE_CAPACITY = 1 << 22;
+    /** Number of segment pairs routes are kept between for repeated route requests. */
+    private static final int ROUTE_CACHE_CAPACITY = 4096;
 
     private static Rasterer rasterer;
+    private static TileCache tileCache;
+    private static RasterCache rasterCache;
+    /** Loads tiles around the rasters served, or null if prefetching is turned off. */
+    private static TilePrefetcher tilePrefetcher;
     private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    private static RouteCache routeCache;
+    private static long routeTimeoutNanos;
+    /** Runs batch route and matrix requests, whose parallel streams then use its threads. */
+    private static ForkJoinPool batchPool;
+    private static Semaphore batchPermits;
+    private static long batchTimeoutNanos;
+    private static Isochrones isochrones;
+    /** Histograms of route query statistics, or null if metrics are turned off. */
+    private static QueryStats.Aggregate routeMetrics;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,8 +231,33 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        Router.Algorithm algorithm = Router.Algorithm.forName(
+                System.getProperty(ROUTING_ALGORITHM_PROPERTY, "astar"));
+        Router.setDefaultAlgorithm(algorithm);
+        graph = GraphSnapshot.load(OSM_DB_PATH, algorithm);
+        int routeThreads = Integer.getInteger(ROUTE_THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        ExecutorService routeExecutor = newRouteExecutor(routeThreads);
+        routeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.getLong(ROUTE_TIMEOUT_PROPERTY, DEFAULT_ROUTE_TIMEOUT_MS));
+        batchPool = new ForkJoinPool(routeThreads);
+        batchPermits = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+        batchTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.getLong(BATCH_TIMEOUT_PROPERTY, DEFAULT_BATCH_TIMEOUT_MS));
+        routeCache = new RouteCache(graph, ROUTE_CACHE_CAPACITY, routeExecutor);
+        isochrones = new Isochrones(graph, ISOCHRONE_CACHE_CAPACITY);
+        routeMetrics = Boolean.getBoolean(METRICS_PROPERTY) ? new QueryStats.Aggregate() : null;
         rasterer = new Rasterer();
+        tileCache = new TileCache(IMG_ROOT,
+                Long.getLong(TILE_CACHE_PROPERTY, DEFAULT_TILE_CACHE_MB) << 20,
+                PINNED_TILE_DEPTH);
+        TilePrefetcher prefetcher = new TilePrefetcher(tileCache,
+                Boolean.getBoolean(TILE_PREFETCH_ZOOM_PROPERTY));
+        prefetcher.warm(Integer.getInteger(TILE_WARM_PROPERTY, DEFAULT_TILE_WARM_DEPTH));
+        tilePrefetcher = Boolean.parseBoolean(System.getProperty(TILE_PREFETCH_PROPERTY, "true"))
+                ? prefetcher : null;
+        rasterCache = new RasterCache(
+                Long.getLong(RASTER_CACHE_PROPERTY, DEFAULT_RASTER_CACHE_MB) << 20);
     }
 
     public static void main(String[] args) {
@@ -109,17 +276,16 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
-
-            boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
-
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+            /* The rasterer does almost all the work for this API call */
+            Rasterer.Window window = rasterer.window(Rasterer.Request.of(params));
+            Map<String, Object> rasteredImgParams = window.toMap();
+
+            if (window.success()) {
+                RasterCache.Raster raster = drawRaster(window);
+                rasteredImgParams.put("raster_width", raster.width);
+                rasteredImgParams.put("raster_height", raster.height);
+                rasteredImgParams.put("b64_encoded_image_data",
+                        Base64.getEncoder().encodeToString(raster.png));
             }
 
             /* Encode response to Json */
@@ -127,25 +293,177 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
-        /* Define the routing endpoint for HTTP GET requests. */
+        /* Define the binary raster endpoint for HTTP GET requests. It takes the same
+         * parameters as /raster, but the body is the PNG image itself, written straight from
+         * the raster cache, and the rest of the result comes as JSON in the X-Raster header,
+         * without the render grid. A query that fails gets no body and status 204. */
+        get("/raster.png", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            Rasterer.Window window = rasterer.window(Rasterer.Request.of(params));
+            Map<String, Object> rasteredImgParams = window.metadata();
+            RasterCache.Raster raster = null;
+            if (window.success()) {
+                raster = drawRaster(window);
+                rasteredImgParams.put("raster_width", raster.width);
+                rasteredImgParams.put("raster_height", raster.height);
+            }
+            res.header("Access-Control-Expose-Headers", RASTER_HEADER);
+            res.header(RASTER_HEADER, new Gson().toJson(rasteredImgParams));
+            if (raster == null) {
+                res.status(NO_CONTENT_RESPONSE);
+                return "";
+            }
+            res.type("image/png");
+            res.raw().setContentLength(raster.png.length);
+            res.raw().getOutputStream().write(raster.png);
+            return "";
+        });
+
+        /* Define the routing endpoint for HTTP GET requests. Both endpoints are snapped onto
+         * the nearest road segment. The route's geometry comes back as an encoded polyline,
+         * which clients draw over the raster themselves; the server keeps no route state, so
+         * rasters do not depend on earlier route requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            Router.Algorithm algorithm = getRouteAlgorithm(req);
+            Router.Metric metric = getMetric(req);
+            int depth = getRouteDepth(req);
+            boolean debug = Boolean.parseBoolean(req.queryParams(DEBUG_PARAM));
+            QueryStats stats = debug || routeMetrics != null ? new QueryStats() : null;
+            RouteCache.Route found = null;
+            try {
+                found = routeCache.route(params.get("start_lon"), params.get("start_lat"),
+                        params.get("end_lon"), params.get("end_lat"), algorithm, metric, stats,
+                        routeTimeoutNanos);
+            } catch (RejectedExecutionException e) {
+                halt(BUSY_RESPONSE, "Server busy - try the route again later.");
+            } catch (TimeoutException e) {
+                halt(BUSY_RESPONSE, "Route timed out - try a shorter route.");
+            }
+            if (routeMetrics != null) {
+                routeMetrics.record(stats);
+            }
+            String directions = getDirectionsText(found.directions);
             Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
+            routeParams.put("routing_success", !found.geometry.isEmpty());
+            routeParams.put("polyline", Polyline.encode(graph, found.geometry, depth));
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
+            if (debug) {
+                routeParams.put("stats", stats.toMap());
+            }
             Gson gson = new Gson();
             return gson.toJson(routeParams);
         });
 
-        /* Define the API endpoint for clearing the current route. */
-        get("/clear_route", (req, res) -> {
-            clearRoute();
-            return true;
+        /* Define the batch routing endpoint for HTTP GET and POST requests. The routes are
+         * searched in parallel and streamed back as newline-delimited JSON, one object per
+         * route as soon as it is found, so they arrive out of order and carry the index of
+         * their start and end. Routes are not cached, to keep a batch from evicting the
+         * routes interactive clients repeat. A batch that runs out of time, or whose client
+         * has gone, starts no further routes, so a response may hold fewer routes than
+         * were asked for. */
+        spark.Route batchRoutes = (req, res) -> {
+            double[][] starts = getLocationsParam(req, REQUIRED_BATCH_REQUEST_PARAMS[0],
+                    MAX_BATCH_ROUTES);
+            double[][] ends = getLocationsParam(req, REQUIRED_BATCH_REQUEST_PARAMS[1],
+                    MAX_BATCH_ROUTES);
+            if (starts[0].length != ends[0].length) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide one end for every start.");
+            }
+            Router.Algorithm algorithm = getRouteAlgorithm(req);
+            Router.Metric metric = getMetric(req);
+            int depth = getRouteDepth(req);
+            res.type("application/x-ndjson");
+            Writer out = new OutputStreamWriter(res.raw().getOutputStream(),
+                    StandardCharsets.UTF_8);
+            Gson gson = new Gson();
+            long deadline = System.nanoTime() + batchTimeoutNanos;
+            try {
+                runBatch(() -> {
+                    Router.findPaths(graph, starts[0], starts[1], ends[0], ends[1], algorithm,
+                            metric, deadline, (path, i) -> {
+                                Map<String, Object> routeParams = new LinkedHashMap<>();
+                                routeParams.put("index", i);
+                                routeParams.put("routing_success", !path.isEmpty());
+                                routeParams.put("polyline", Polyline.encode(graph, path, depth));
+                                String line = gson.toJson(routeParams);
+                                synchronized (out) {
+                                    try {
+                                        out.write(line);
+                                        out.write('\n');
+                                        out.flush();
+                                    } catch (IOException e) {
+                                        throw new UncheckedIOException(e);
+                                    }
+                                }
+                            });
+                    return null;
+                });
+            } catch (CancellationException | UncheckedIOException e) {
+                /* Out of time, or the client has gone; the routes found so far are sent. */
+            }
+            return "";
+        };
+        get("/routes", batchRoutes);
+        post("/routes", batchRoutes);
+
+        /* Define the distance matrix endpoint for HTTP GET requests. The distances come back
+         * row by row, origin by origin, in miles (or seconds with metric=fastest), with -1
+         * for unreachable destinations. */
+        get("/matrix", (req, res) -> {
+            double[][] origins = getLocationsParam(req, REQUIRED_MATRIX_REQUEST_PARAMS[0],
+                    MAX_MATRIX_LOCATIONS);
+            double[][] destinations = getLocationsParam(req, REQUIRED_MATRIX_REQUEST_PARAMS[1],
+                    MAX_MATRIX_LOCATIONS);
+            Router.Metric metric = getMetric(req);
+            double[] distances = runBatch(() -> Router.distanceMatrix(graph, origins[0],
+                    origins[1], destinations[0], destinations[1], metric));
+            for (int i = 0; i < distances.length; i++) {
+                if (distances[i] == Double.POSITIVE_INFINITY) {
+                    distances[i] = -1;
+                }
+            }
+            Map<String, Object> matrixParams = new HashMap<>();
+            matrixParams.put("rows", origins[0].length);
+            matrixParams.put("columns", destinations[0].length);
+            matrixParams.put("distances", distances);
+            matrixParams.put("matrix_success", true);
+            Gson gson = new Gson();
+            return gson.toJson(matrixParams);
+        });
+
+        /* Define the reachability endpoint for HTTP GET requests. */
+        get("/reachable", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_REACHABLE_REQUEST_PARAMS);
+            Isochrones.Reachable reachable = isochrones.reachable(params.get("lon"),
+                    params.get("lat"), params.get("budget"), getMetric(req));
+            Map<String, Object> reachableParams = new HashMap<>();
+            reachableParams.put("vertices", reachable.vertices);
+            reachableParams.put("boundary", reachable.boundary);
+            reachableParams.put("reachable_success", !reachable.vertices.isEmpty());
+            Gson gson = new Gson();
+            return gson.toJson(reachableParams);
+        });
+
+        /* Define the metrics endpoint for HTTP GET requests: route, tile and raster cache
+         * counters, and with metrics turned on, histograms of every route query statistic. */
+        get("/metrics", (req, res) -> {
+            Map<String, Object> metricsParams = new HashMap<>();
+            metricsParams.put("route_cache_hits", routeCache.hits());
+            metricsParams.put("route_cache_misses", routeCache.misses());
+            metricsParams.put("route_coalesced", routeCache.coalesced());
+            metricsParams.put("tile_cache", tileCache.toMap());
+            metricsParams.put("raster_cache", rasterCache.toMap());
+            metricsParams.put("metrics_enabled", routeMetrics != null);
+            if (routeMetrics != null) {
+                metricsParams.put("route", routeMetrics.toMap());
+            }
+            Gson gson = new Gson();
+            return gson.toJson(metricsParams);
         });
 
         /* Define the API endpoint for search */
@@ -198,85 +516,186 @@ public class MapServer {
     }
 
     /**
-     * Writes the images corresponding to rasteredImgParams to the output stream.
-     * In Spring 2016, students had to do this on their own, but in 2017,
-     * we have made this into provided code since it was just a bit too low level.
+     * Parses a request parameter holding a comma-separated list of longitude, latitude
+     * pairs.
+     * @param req HTTP Request.
+     * @param param The name of the parameter.
+     * @param max The largest number of pairs to accept.
+     * @return The longitudes at [0] and the latitudes at [1].
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
-        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
-
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
+    private static double[][] getLocationsParam(spark.Request req, String param, int max) {
+        String value = req.queryParams(param);
+        if (value == null) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] numbers = value.split(",");
+        if (numbers.length % 2 != 0 || numbers.length / 2 > max) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide up to "
+                    + max + " longitude, latitude pairs.");
+        }
+        double[][] locations = new double[2][numbers.length / 2];
+        try {
+            for (int i = 0; i < numbers.length; i++) {
+                locations[i % 2][i / 2] = Double.parseDouble(numbers[i].trim());
             }
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
         }
+        return locations;
+    }
 
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
-
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+    /**
+     * Runs a batch route or matrix computation on the batch pool, so that its parallel
+     * streams use that pool's threads rather than the common pool's, and halts the request
+     * instead if MAX_BATCHES_IN_FLIGHT computations are running already.
+     * @param batch The computation.
+     * @return What the computation returns.
+     */
+    private static <T> T runBatch(Callable<T> batch) throws InterruptedException {
+        if (!batchPermits.tryAcquire()) {
+            halt(BUSY_RESPONSE, "Server busy - try the batch again later.");
+        }
+        try {
+            return batchPool.submit(batch).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            batchPermits.release();
         }
+    }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+    /**
+     * Returns an executor running routes on a fixed number of daemon threads, which refuses
+     * work once ROUTE_QUEUE_CAPACITY computations are waiting for a thread.
+     * @param threads The number of threads.
+     * @return The executor.
+     */
+    private static ExecutorService newRouteExecutor(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ROUTE_QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "route");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
 
+    /**
+     * Returns the routing algorithm a route request asks for, or the server's default
+     * algorithm if it does not name one.
+     * @param req HTTP Request.
+     * @return The algorithm to route the request with.
+     */
+    private static Router.Algorithm getRouteAlgorithm(spark.Request req) {
+        String name = req.queryParams(ROUTE_ALGORITHM_PARAM);
+        if (name == null) {
+            return Router.getDefaultAlgorithm();
+        }
         try {
-            ImageIO.write(img, "png", os);
-        } catch (IOException e) {
-            e.printStackTrace();
+            return Router.Algorithm.forName(name);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown routing algorithm.");
+            return null;
         }
-
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
+    /**
+     * Returns the raster depth a route request asks its polyline to be simplified for, or
+     * -1 if it does not name one.
+     * @param req HTTP Request.
+     * @return The depth.
+     */
+    private static int getRouteDepth(spark.Request req) {
+        String value = req.queryParams(ROUTE_DEPTH_PARAM);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            int depth = Integer.parseInt(value);
+            if (depth >= 0) {
+                return depth;
             }
+        } catch (NumberFormatException e) {
+            /* Rejected below. */
         }
-        return tileImg;
+        halt(HALT_RESPONSE, "Incorrect parameters - provide a non-negative integer depth.");
+        return -1;
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * Returns the metric a request asks for, or SHORTEST if it does not name one.
+     * @param req HTTP Request.
+     * @return The metric to answer the request with.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    private static Router.Metric getMetric(spark.Request req) {
+        String name = req.queryParams(METRIC_PARAM);
+        if (name == null) {
+            return Router.Metric.SHORTEST;
+        }
+        try {
+            return Router.Metric.forName(name);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown routing metric.");
+            return null;
+        }
     }
 
+    /**
+     * Returns the raster for a window of tiles, drawing and caching it unless the same
+     * window has been drawn before, and starts prefetching the tiles around it.
+     * @param window The window, from a successful query.
+     * @return The raster.
+     */
+    private static RasterCache.Raster drawRaster(Rasterer.Window window) {
+        if (tilePrefetcher != null) {
+            tilePrefetcher.prefetch(window);
+        }
+        RasterCache.Raster raster = rasterCache.get(window);
+        if (raster == null) {
+            /* The png image is written to the ByteArrayOutputStream */
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            writeImagesToOutputStream(window, os);
+            raster = new RasterCache.Raster(os.toByteArray(),
+                    window.columns() * MapServer.TILE_SIZE, window.rows() * MapServer.TILE_SIZE);
+            rasterCache.put(window, raster);
+        }
+        return raster;
+    }
+
+    /**
+     * Writes the images of the tiles in a window to the output stream as one PNG image.
+     * In Spring 2016, students had to do this on their own, but in 2017,
+     * we have made this into provided code since it was just a bit too low level.
+     */
+    private static void writeImagesToOutputStream(Rasterer.Window window,
+                                                  ByteArrayOutputStream os) {
+        BufferedImage img = new BufferedImage(window.columns() * MapServer.TILE_SIZE,
+                window.rows() * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics graphic = img.getGraphics();
+
+        for (int r = 0; r < window.rows(); r += 1) {
+            for (int c = 0; c < window.columns(); c += 1) {
+                graphic.drawImage(tileCache.get(window.tileName(r, c)),
+                        c * MapServer.TILE_SIZE, r * MapServer.TILE_SIZE, null);
+            }
+        }
+        graphic.dispose();
+
+        try {
+            ImageIO.write(img, "png", os);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+
     /**
      * In linear time, collect all the names of OSM locations that prefix-match the query string.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
@@ -305,32 +724,10 @@ public class MapServer {
     }
 
     /**
-     * Validates that Rasterer has returned a result that can be rendered.
-     * @param rip : Parameters provided by the rasterer
-     */
-    private static boolean validateRasteredImgParams(Map<String, Object> rip) {
-        for (String p : REQUIRED_RASTER_RESULT_PARAMS) {
-            if (!rip.containsKey(p)) {
-                System.out.println("Your rastering result is missing the " + p + " field.");
-                return false;
-            }
-        }
-        if (rip.containsKey("query_success")) {
-            boolean success = (boolean) rip.get("query_success");
-            if (!success) {
-                System.out.println("query_success was reported as a failure");
-                return false;
-            }
-        }
-        return true;
-    }
-
-    /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
-     * String to be passed to the frontend.
+     * Takes the directions for a route and converts them into an HTML
+     * friendly String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(List<Router.NavigationDirection> directions) {
         if (directions == null || directions.isEmpty()) {
             return "";
         }
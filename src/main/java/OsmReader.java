@@ -0,0 +1,301 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ *  Streams an OSM XML file into a GraphDB. See OSM documentation on
+ *  <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>,
+ *  <a href="http://wiki.openstreetmap.org/wiki/Way">the way XML element</a> and
+ *  <a href="http://wiki.openstreetmap.org/wiki/Node">the node XML element</a>.
+ *
+ *  The file is read twice with an OsmScanner, a byte-level tokenizer that only decodes
+ *  the attribute values the graph needs. The first pass only looks at ways:
+ *  it keeps the valid highway ways and records every node id they reference. The
+ *  second pass only looks at nodes, and keeps coordinates just for the referenced
+ *  nodes (plus every named node, for location search). This way the hundreds of
+ *  thousands of nodes that are not on a road are never staged in the graph.
+ *
+ *  In both passes the XML is parsed on a separate thread, which hands batches of
+ *  parsed elements to the calling thread through a bounded queue; the calling thread
+ *  assembles them into the graph. Input compressed with gzip or bzip2 is detected
+ *  from its first bytes and decompressed on the fly.
+ *
+ *  @author Alan Yao, Maurice Lee
+ */
+public class OsmReader {
+    /**
+     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
+     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
+     * roads, but in practice we walk all over them with such impunity that we forget cars can
+     * actually drive on them.
+     */
+    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
+                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
+                    "secondary_link", "tertiary_link"));
+    /** Number of parsed elements handed over to the assembling thread at a time. */
+    private static final int BATCH_SIZE = 4096;
+    /** Number of batches the parser may run ahead of the assembling thread. */
+    private static final int QUEUE_CAPACITY = 16;
+    /** Marks the end of a pass in the queue. */
+    private static final Batch END_OF_PASS = new Batch();
+
+    /* Element and attribute names, compared as bytes by the scanner. */
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] ND = bytes("nd");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] ID = bytes("id");
+    private static final byte[] LON = bytes("lon");
+    private static final byte[] LAT = bytes("lat");
+    private static final byte[] REF = bytes("ref");
+    private static final byte[] K = bytes("k");
+    private static final byte[] V = bytes("v");
+    private static final byte[] NAME = bytes("name");
+    private static final byte[] HIGHWAY = bytes("highway");
+    private static final byte[] MAXSPEED = bytes("maxspeed");
+
+    private final GraphDB g;
+    /** Ids of the nodes referenced by valid ways, found by the first pass. */
+    private LongIntHashMap referenced;
+
+    /**
+     * Create a new OsmReader.
+     * @param g The graph to populate with the XML data.
+     */
+    public OsmReader(GraphDB g) {
+        this.g = g;
+    }
+
+    /**
+     * Reads the OSM file into the graph.
+     * @param dbPath Path to the OSM XML file, which may be gzip or bzip2 compressed.
+     * @throws IOException If the file cannot be read or is not valid XML.
+     */
+    public void read(String dbPath) throws IOException {
+        List<Way> ways = new ArrayList<>();
+        referenced = new LongIntHashMap(1 << 16);
+        runPass(dbPath, true, batch -> {
+            for (Way way : batch.ways) {
+                ways.add(way);
+                for (long ref : way.refs) {
+                    referenced.putIfAbsent(ref, 0);
+                }
+            }
+        });
+        runPass(dbPath, false, batch -> {
+            for (int i = 0; i < batch.size; i++) {
+                if (referenced.containsKey(batch.ids[i])) {
+                    g.addNode(batch.ids[i], batch.lons[i], batch.lats[i]);
+                }
+                if (batch.names[i] != null) {
+                    GraphDB.Node location = new GraphDB.Node(batch.ids[i], batch.lons[i],
+                            batch.lats[i]);
+                    location.setName(batch.names[i]);
+                    g.addLocation(location);
+                }
+            }
+        });
+        for (Way way : ways) {
+            g.addWay(way.refs, way.highway, way.maxSpeed, way.name);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Opens a file, transparently decompressing gzip and bzip2 input. */
+    static InputStream open(String path) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path), 1 << 16);
+        in.mark(3);
+        int b0 = in.read();
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16);
+        } else if (b0 == 'B' && b1 == 'Z' && b2 == 'h') {
+            return new BufferedInputStream(new BZip2CompressorInputStream(in, true), 1 << 16);
+        }
+        return in;
+    }
+
+    /**
+     * Parses the file on a new thread and feeds the parsed batches to the consumer on
+     * this thread, in file order.
+     */
+    private void runPass(String dbPath, boolean waysPass, BatchConsumer consumer)
+            throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Throwable[] failure = new Throwable[1];
+        Thread parser = new Thread(() -> {
+            try (InputStream in = open(dbPath)) {
+                parse(in, waysPass, queue);
+            } catch (IOException | RuntimeException e) {
+                failure[0] = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                queue.put(END_OF_PASS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "osm-parser");
+        parser.setDaemon(true);
+        parser.start();
+        try {
+            for (Batch batch = queue.take(); batch != END_OF_PASS; batch = queue.take()) {
+                consumer.accept(batch);
+            }
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading " + dbPath, e);
+        } finally {
+            parser.interrupt();
+        }
+        if (failure[0] != null) {
+            throw new IOException("could not parse " + dbPath, failure[0]);
+        }
+    }
+
+    /** Scans elements off the XML stream, emitting either ways or nodes in batches. */
+    private static void parse(InputStream in, boolean waysPass, BlockingQueue<Batch> queue)
+            throws IOException, InterruptedException {
+        OsmScanner xml = new OsmScanner(in);
+        Batch batch = new Batch(waysPass);
+        Way way = null;
+        boolean inNode = false;
+        long nodeId = 0;
+        double nodeLon = 0;
+        double nodeLat = 0;
+        String nodeName = null;
+        for (int token = xml.next(); token != OsmScanner.END_OF_INPUT; token = xml.next()) {
+            if (token == OsmScanner.START_TAG) {
+                if (waysPass) {
+                    if (xml.isElement(WAY)) {
+                        way = new Way();
+                    } else if (way != null && xml.isElement(ND)) {
+                        way.addRef(xml.longAttribute(REF));
+                    } else if (way != null && xml.isElement(TAG)) {
+                        if (xml.attributeEquals(K, MAXSPEED)) {
+                            way.maxSpeed = xml.attribute(V);
+                        } else if (xml.attributeEquals(K, HIGHWAY)) {
+                            String highway = xml.attribute(V);
+                            if (ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+                                way.highway = highway;
+                                way.isValid = true;
+                            }
+                        } else if (xml.attributeEquals(K, NAME)) {
+                            way.name = xml.attribute(V);
+                        }
+                    }
+                } else if (xml.isElement(NODE)) {
+                    inNode = true;
+                    nodeId = xml.longAttribute(ID);
+                    nodeLon = xml.doubleAttribute(LON);
+                    nodeLat = xml.doubleAttribute(LAT);
+                    nodeName = null;
+                } else if (inNode && xml.isElement(TAG) && xml.attributeEquals(K, NAME)) {
+                    nodeName = xml.attribute(V);
+                }
+            } else if (waysPass) {
+                if (way != null && xml.isElement(WAY)) {
+                    if (way.isValid) {
+                        way.trim();
+                        batch.ways.add(way);
+                        if (batch.ways.size() == BATCH_SIZE) {
+                            queue.put(batch);
+                            batch = new Batch(true);
+                        }
+                    }
+                    way = null;
+                }
+            } else if (inNode && xml.isElement(NODE)) {
+                inNode = false;
+                batch.addNode(nodeId, nodeLon, nodeLat, nodeName);
+                if (batch.size == BATCH_SIZE) {
+                    queue.put(batch);
+                    batch = new Batch(false);
+                }
+            }
+        }
+        queue.put(batch);
+    }
+
+    /** Receives the batches of one pass. */
+    private interface BatchConsumer {
+        void accept(Batch batch);
+    }
+
+    /** A group of parsed ways, or of parsed nodes stored column-wise. */
+    private static class Batch {
+        final List<Way> ways;
+        final long[] ids;
+        final double[] lons;
+        final double[] lats;
+        final String[] names;
+        int size;
+
+        /** Creates the empty end-of-pass marker. */
+        Batch() {
+            ways = new ArrayList<>();
+            ids = new long[0];
+            lons = new double[0];
+            lats = new double[0];
+            names = new String[0];
+        }
+
+        Batch(boolean ofWays) {
+            int capacity = ofWays ? 0 : BATCH_SIZE;
+            ways = new ArrayList<>(ofWays ? BATCH_SIZE : 0);
+            ids = new long[capacity];
+            lons = new double[capacity];
+            lats = new double[capacity];
+            names = new String[capacity];
+        }
+
+        void addNode(long id, double lon, double lat, String name) {
+            ids[size] = id;
+            lons[size] = lon;
+            lats[size] = lat;
+            names[size] = name;
+            size += 1;
+        }
+    }
+
+    /** A way being parsed, with the tags the graph cares about. */
+    private static class Way {
+        long[] refs = new long[8];
+        int numRefs;
+        String name = "unknown road";
+        String highway;
+        String maxSpeed;
+        boolean isValid;
+
+        void addRef(long ref) {
+            if (numRefs == refs.length) {
+                refs = Arrays.copyOf(refs, numRefs * 2);
+            }
+            refs[numRefs++] = ref;
+        }
+
+        void trim() {
+            refs = Arrays.copyOf(refs, numRefs);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal byte-level XML tokenizer for OSM files. It reports start and end tags
+ * and gives access to the attributes of the current start tag, without building
+ * String objects for element or attribute names: callers compare them as bytes
+ * and only decode the attribute values they actually need.
+ *
+ * Only the subset of XML that OSM files use is supported. Text content, comments,
+ * processing instructions and DOCTYPE declarations are skipped; character and
+ * predefined entity references in attribute values are decoded.
+ */
+class OsmScanner {
+    /** next() found a start tag; self-closing tags are followed by an END_TAG. */
+    static final int START_TAG = 1;
+    /** next() found an end tag. */
+    static final int END_TAG = 2;
+    /** next() reached the end of the input. */
+    static final int END_OF_INPUT = -1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_ATTRIBUTES = 8;
+
+    private final InputStream in;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /* The current tag, as offsets into buf. */
+    private int nameStart;
+    private int nameEnd;
+    private int numAttributes;
+    private int[] attrNameStart = new int[MAX_ATTRIBUTES];
+    private int[] attrNameEnd = new int[MAX_ATTRIBUTES];
+    private int[] attrValueStart = new int[MAX_ATTRIBUTES];
+    private int[] attrValueEnd = new int[MAX_ATTRIBUTES];
+    /** Whether the last start tag was self-closing and its END_TAG is still owed. */
+    private boolean pendingEnd;
+
+    OsmScanner(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next start or end tag.
+     * @return START_TAG, END_TAG or END_OF_INPUT.
+     * @throws IOException If the input cannot be read or a tag is malformed.
+     */
+    int next() throws IOException {
+        if (pendingEnd) {
+            pendingEnd = false;
+            numAttributes = 0;
+            return END_TAG;
+        }
+        while (true) {
+            if (!skipTo((byte) '<')) {
+                return END_OF_INPUT;
+            }
+            int tagEnd = findTagEnd();
+            byte first = buf[pos + 1];
+            if (first == '?' || first == '!') {
+                pos = tagEnd + 1;
+                continue;
+            }
+            if (first == '/') {
+                nameStart = pos + 2;
+                nameEnd = scanName(nameStart, tagEnd);
+                numAttributes = 0;
+                pos = tagEnd + 1;
+                return END_TAG;
+            }
+            nameStart = pos + 1;
+            nameEnd = scanName(nameStart, tagEnd);
+            parseAttributes(nameEnd, tagEnd);
+            pendingEnd = buf[tagEnd - 1] == '/';
+            pos = tagEnd + 1;
+            return START_TAG;
+        }
+    }
+
+    /** Returns whether the current tag has the given name. */
+    boolean isElement(byte[] name) {
+        return equalBytes(nameStart, nameEnd, name);
+    }
+
+    /** Returns whether the current tag has an attribute with the given value. */
+    boolean attributeEquals(byte[] name, byte[] value) {
+        int a = findAttribute(name);
+        return a >= 0 && equalBytes(attrValueStart[a], attrValueEnd[a], value);
+    }
+
+    /** Returns the decoded value of an attribute of the current tag, or null. */
+    String attribute(byte[] name) {
+        int a = findAttribute(name);
+        if (a < 0) {
+            return null;
+        }
+        int start = attrValueStart[a];
+        int end = attrValueEnd[a];
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '&') {
+                return unescape(new String(buf, start, end - start, StandardCharsets.UTF_8));
+            }
+        }
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /** Returns an attribute of the current tag parsed as a long. */
+    long longAttribute(byte[] name) throws IOException {
+        int a = findAttribute(name);
+        if (a < 0) {
+            throw new IOException("missing attribute " + new String(name, StandardCharsets.UTF_8));
+        }
+        int i = attrValueStart[a];
+        int end = attrValueEnd[a];
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new IOException("malformed number in attribute "
+                    + new String(name, StandardCharsets.UTF_8));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("malformed number in attribute "
+                        + new String(name, StandardCharsets.UTF_8));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /** Returns an attribute of the current tag parsed as a double. */
+    double doubleAttribute(byte[] name) throws IOException {
+        int a = findAttribute(name);
+        if (a < 0) {
+            throw new IOException("missing attribute " + new String(name, StandardCharsets.UTF_8));
+        }
+        String value = new String(buf, attrValueStart[a], attrValueEnd[a] - attrValueStart[a],
+                StandardCharsets.ISO_8859_1);
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed number " + value, e);
+        }
+    }
+
+    private int findAttribute(byte[] name) {
+        for (int a = 0; a < numAttributes; a++) {
+            if (equalBytes(attrNameStart[a], attrNameEnd[a], name)) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalBytes(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void parseAttributes(int from, int tagEnd) throws IOException {
+        numAttributes = 0;
+        int i = from;
+        while (true) {
+            while (i < tagEnd && isSpace(buf[i])) {
+                i++;
+            }
+            if (i >= tagEnd || buf[i] == '/') {
+                return;
+            }
+            int start = i;
+            while (i < tagEnd && buf[i] != '=' && !isSpace(buf[i])) {
+                i++;
+            }
+            int end = i;
+            while (i < tagEnd && buf[i] != '\'' && buf[i] != '"') {
+                i++;
+            }
+            if (i >= tagEnd) {
+                throw new IOException("malformed attribute in tag");
+            }
+            byte quote = buf[i++];
+            int valueStart = i;
+            while (buf[i] != quote) {
+                i++;
+            }
+            if (numAttributes == attrNameStart.length) {
+                int capacity = numAttributes * 2;
+                attrNameStart = Arrays.copyOf(attrNameStart, capacity);
+                attrNameEnd = Arrays.copyOf(attrNameEnd, capacity);
+                attrValueStart = Arrays.copyOf(attrValueStart, capacity);
+                attrValueEnd = Arrays.copyOf(attrValueEnd, capacity);
+            }
+            attrNameStart[numAttributes] = start;
+            attrNameEnd[numAttributes] = end;
+            attrValueStart[numAttributes] = valueStart;
+            attrValueEnd[numAttributes] = i;
+            numAttributes += 1;
+            i++;
+        }
+    }
+
+    private int scanName(int from, int tagEnd) {
+        int i = from;
+        while (i < tagEnd && !isSpace(buf[i]) && buf[i] != '/') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    /** Skips ahead until buf[pos] == b, refilling as needed. */
+    private boolean skipTo(byte b) throws IOException {
+        while (true) {
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == b) {
+                    pos = i;
+                    return true;
+                }
+            }
+            pos = limit;
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the '>' closing the tag that starts at pos, making sure
+     * the whole tag is in the buffer. Quoted attribute values and comments may
+     * contain '>' characters.
+     */
+    private int findTagEnd() throws IOException {
+        int offset = 1;
+        byte quote = 0;
+        boolean comment = false;
+        while (true) {
+            if (pos + offset >= limit) {
+                if (!fill()) {
+                    throw new IOException("unexpected end of input inside a tag");
+                }
+                continue;
+            }
+            if (offset == 3 && buf[pos + 1] == '!' && buf[pos + 2] == '-'
+                    && buf[pos + 3] == '-') {
+                comment = true;
+            }
+            byte b = buf[pos + offset];
+            if (comment) {
+                if (b == '>' && offset >= 6 && buf[pos + offset - 1] == '-'
+                        && buf[pos + offset - 2] == '-') {
+                    return pos + offset;
+                }
+            } else if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return pos + offset;
+            }
+            offset++;
+        }
+    }
+
+    /** Moves the unread bytes to the front of the buffer and reads more input. */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /** Decodes the predefined and numeric character references in s. */
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int semicolon = c == '&' ? s.indexOf(';', i) : -1;
+            if (semicolon < 0) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            String entity = s.substring(i + 1, semicolon);
+            if (entity.equals("amp")) {
+                sb.append('&');
+            } else if (entity.equals("lt")) {
+                sb.append('<');
+            } else if (entity.equals("gt")) {
+                sb.append('>');
+            } else if (entity.equals("quot")) {
+                sb.append('"');
+            } else if (entity.equals("apos")) {
+                sb.append('\'');
+            } else if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+            } else if (entity.startsWith("#")) {
+                sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+            } else {
+                sb.append(s, i, semicolon + 1);
+            }
+            i = semicolon + 1;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.Arrays;
+
+/**
+ * Encodes paths in the
+ * <a href="https://developers.google.com/maps/documentation/utilities/polylinealgorithm">
+ * encoded polyline format</a>: latitude, longitude pairs at five decimal places, each
+ * written as the difference from the previous point in base 64 printable characters.
+ *
+ * Paths can be simplified for display at a raster depth first. Douglas-Peucker drops
+ * every vertex that lies within half a pixel of the line through the vertices kept around
+ * it, measured at that depth's resolution, so a drawn route looks the same while long
+ * routes shrink to a fraction of their vertices at shallow depths.
+ */
+final class Polyline {
+    /** Coordinates are rounded to this many units per degree. */
+    private static final double SCALE = 1e5;
+    /** Simplified paths stay within this many pixels of the full path. */
+    private static final double TOLERANCE_PX = 0.5;
+    /** Deepest raster depth that simplification is worth doing for. */
+    static final int MAX_DEPTH = 30;
+
+    private Polyline() {
+    }
+
+    /**
+     * Encodes a path through the graph, including the snapped points it starts and ends at.
+     * @param g The graph the path is on.
+     * @param path The path.
+     * @param depth The raster depth to simplify the path for, or -1 to keep every point.
+     * @return The encoded polyline.
+     */
+    static String encode(GraphDB g, Router.Path path, int depth) {
+        double[] lons = new double[path.points()];
+        double[] lats = new double[path.points()];
+        for (int i = 0; i < lons.length; i++) {
+            lons[i] = path.lon(g, i);
+            lats[i] = path.lat(g, i);
+        }
+        if (depth < 0) {
+            return encode(lons, lats, null);
+        }
+        double tiles = Math.pow(2, Math.min(depth, MAX_DEPTH)) * MapServer.TILE_SIZE;
+        double lonPerPixel = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / tiles;
+        double latPerPixel = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / tiles;
+        return encode(lons, lats, simplify(lons, lats, lonPerPixel * TOLERANCE_PX,
+                latPerPixel * TOLERANCE_PX));
+    }
+
+    /**
+     * Encodes the points whose keep flag is set, or every point if keep is null.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points.
+     * @param keep Which points to encode, or null for all of them.
+     * @return The encoded polyline.
+     */
+    static String encode(double[] lons, double[] lats, boolean[] keep) {
+        StringBuilder sb = new StringBuilder(lons.length * 8);
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = 0; i < lons.length; i++) {
+            if (keep != null && !keep[i]) {
+                continue;
+            }
+            long lat = Math.round(lats[i] * SCALE);
+            long lon = Math.round(lons[i] * SCALE);
+            appendValue(sb, lat - lastLat);
+            appendValue(sb, lon - lastLon);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return sb.toString();
+    }
+
+    /** Appends one zigzag-encoded value in 5-bit chunks, least significant first. */
+    private static void appendValue(StringBuilder sb, long value) {
+        long bits = value < 0 ? ~(value << 1) : value << 1;
+        while (bits >= 0x20) {
+            sb.append((char) ((0x20 | (bits & 0x1f)) + 63));
+            bits >>= 5;
+        }
+        sb.append((char) (bits + 63));
+    }
+
+    /**
+     * Decodes an encoded polyline.
+     * @param polyline The encoded polyline.
+     * @return The longitudes at [0] and the latitudes at [1], rounded to five places.
+     */
+    static double[][] decode(String polyline) {
+        double[] lons = new double[polyline.length() / 2];
+        double[] lats = new double[polyline.length() / 2];
+        int count = 0;
+        long lat = 0;
+        long lon = 0;
+        int[] position = {0};
+        while (position[0] < polyline.length()) {
+            lat += readValue(polyline, position);
+            lon += readValue(polyline, position);
+            lats[count] = lat / SCALE;
+            lons[count] = lon / SCALE;
+            count += 1;
+        }
+        return new double[][] {Arrays.copyOf(lons, count), Arrays.copyOf(lats, count)};
+    }
+
+    /** Reads one zigzag-encoded value starting at position[0], advancing it. */
+    private static long readValue(String polyline, int[] position) {
+        long bits = 0;
+        int shift = 0;
+        int chunk;
+        do {
+            chunk = polyline.charAt(position[0]++) - 63;
+            bits |= (long) (chunk & 0x1f) << shift;
+            shift += 5;
+        } while (chunk >= 0x20);
+        return (bits & 1) != 0 ? ~(bits >> 1) : bits >> 1;
+    }
+
+    /**
+     * Simplifies a path with Douglas-Peucker, measuring distances in units of the given
+     * longitude and latitude tolerances so that both axes are judged in pixels.
+     * @return Which points to keep; the first and last are always kept.
+     */
+    static boolean[] simplify(double[] lons, double[] lats, double lonTolerance,
+                              double latTolerance) {
+        int n = lons.length;
+        boolean[] keep = new boolean[n];
+        if (n == 0) {
+            return keep;
+        }
+        keep[0] = true;
+        keep[n - 1] = true;
+        /* Ranges still to split, as (first, last) pairs on an explicit stack. */
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = 0;
+        stack[size++] = n - 1;
+        while (size > 0) {
+            int last = stack[--size];
+            int first = stack[--size];
+            double ax = lons[first] / lonTolerance;
+            double ay = lats[first] / latTolerance;
+            double dx = lons[last] / lonTolerance - ax;
+            double dy = lats[last] / latTolerance - ay;
+            double length = Math.sqrt(dx * dx + dy * dy);
+            int farthest = -1;
+            double farthestDistance = 1;
+            for (int i = first + 1; i < last; i++) {
+                double px = lons[i] / lonTolerance - ax;
+                double py = lats[i] / latTolerance - ay;
+                double distance = length > 0 ? Math.abs(px * dy - py * dx) / length
+                        : Math.sqrt(px * px + py * py);
+                if (distance > farthestDistance) {
+                    farthestDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                if (size + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[size++] = first;
+                stack[size++] = farthest;
+                stack[size++] = farthest;
+                stack[size++] = last;
+            }
+        }
+        return keep;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What one route query cost: how much work its search did and how long snapping the
+ * endpoints, searching and building directions took.
+ *
+ * Collection is opt-in per query. The search counters are kept by the thread's search
+ * state whether or not anyone asks (a couple of increments per settled vertex), and are
+ * only copied out when a query passes a QueryStats; clock readings are taken only then.
+ * A query answered from the route cache, or by waiting for an identical query's search,
+ * does no search and reports zero search work.
+ */
+final class QueryStats {
+    /** Vertices settled; a vertex reopened and settled again counts twice. */
+    int settled;
+    /** Open set pushes, including priority changes of vertices already in it. */
+    int pushes;
+    int pops;
+    /** Edges relaxed from settled vertices, including shortcuts for hierarchy queries. */
+    long relaxed;
+    long snapNanos;
+    long searchNanos;
+    long directionsNanos;
+    /** Whether the route came from the route cache. */
+    boolean cached;
+    /** Whether the route came from an identical query's search, still running on arrival. */
+    boolean coalesced;
+    /** The clock reading at the end of the last stage timed. */
+    private long lap;
+
+    /** Starts timing the first stage. */
+    void start() {
+        lap = System.nanoTime();
+    }
+
+    /** Ends the stage that snaps the endpoints to vertices. */
+    void snapped() {
+        snapNanos += elapsed();
+    }
+
+    /** Ends the search stage. */
+    void searched() {
+        searchNanos += elapsed();
+    }
+
+    /** Ends the stage that builds the directions and vertex ids. */
+    void directed() {
+        directionsNanos += elapsed();
+    }
+
+    private long elapsed() {
+        long now = System.nanoTime();
+        long elapsed = now - lap;
+        lap = now;
+        return elapsed;
+    }
+
+    /** Adds the work a finished search state did. */
+    void addSearch(SearchState search) {
+        addSearch(search.settled(), search.relaxed(), search.open);
+    }
+
+    /**
+     * Adds the work one direction of a search did.
+     * @param settled The vertices it settled.
+     * @param relaxed The edges it relaxed.
+     * @param open Its open set, which counts its own pushes and pops.
+     */
+    void addSearch(int settled, long relaxed, IndexMinHeap open) {
+        this.settled += settled;
+        this.relaxed += relaxed;
+        this.pushes += open.pushes();
+        this.pops += open.pops();
+    }
+
+    /** Returns the statistics keyed for a JSON response, with times in microseconds. */
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("cached", cached);
+        map.put("coalesced", coalesced);
+        map.put("settled", settled);
+        map.put("heap_pushes", pushes);
+        map.put("heap_pops", pops);
+        map.put("edges_relaxed", relaxed);
+        map.put("snap_us", snapNanos / 1000);
+        map.put("search_us", searchNanos / 1000);
+        map.put("directions_us", directionsNanos / 1000);
+        return map;
+    }
+
+    /** Histograms of every statistic over many queries, safe to record from any thread. */
+    static final class Aggregate {
+        private final Histogram settled = new Histogram();
+        private final Histogram pushes = new Histogram();
+        private final Histogram pops = new Histogram();
+        private final Histogram relaxed = new Histogram();
+        private final Histogram snapMicros = new Histogram();
+        private final Histogram searchMicros = new Histogram();
+        private final Histogram directionsMicros = new Histogram();
+        private final Histogram totalMicros = new Histogram();
+
+        /**
+         * Records one query. Cached and coalesced queries only count towards the times, so
+         * the search histograms describe the searches actually run.
+         */
+        void record(QueryStats stats) {
+            if (!stats.cached && !stats.coalesced) {
+                settled.record(stats.settled);
+                pushes.record(stats.pushes);
+                pops.record(stats.pops);
+                relaxed.record(stats.relaxed);
+            }
+            snapMicros.record(stats.snapNanos / 1000);
+            searchMicros.record(stats.searchNanos / 1000);
+            directionsMicros.record(stats.directionsNanos / 1000);
+            totalMicros.record((stats.snapNanos + stats.searchNanos + stats.directionsNanos)
+                    / 1000);
+        }
+
+        /** Returns a summary of every histogram, keyed for a JSON response. */
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("settled", settled.summary());
+            map.put("heap_pushes", pushes.summary());
+            map.put("heap_pops", pops.summary());
+            map.put("edges_relaxed", relaxed.summary());
+            map.put("snap_us", snapMicros.summary());
+            map.put("search_us", searchMicros.summary());
+            map.put("directions_us", directionsMicros.summary());
+            map.put("total_us", totalMicros.summary());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of finished rasters, bounded by the bytes of their PNG images, so that a
+ * viewport seen before is answered without stitching its tiles or encoding the result.
+ *
+ * A raster is determined by the window of tiles Rasterer picks for a viewport: the depth
+ * and the tile ranges across and down. Rasters draw nothing but tiles, so the window is
+ * the whole key; tiles are read-only for the life of the server, and a server that
+ * replaces them must clear the cache. When over its size, the cache evicts the least
+ * recently used rasters.
+ */
+public class RasterCache {
+    private final long capacityBytes;
+    private final LinkedHashMap<Rasterer.Window, Raster> rasters =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** Bytes taken by the cached rasters, guarded by the same lock. */
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     * @param capacityBytes The most bytes the cached rasters' PNG images may take.
+     */
+    public RasterCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Returns the cached raster for a window of tiles.
+     * @param window The window.
+     * @return The raster, or null if it is not cached.
+     */
+    public Raster get(Rasterer.Window window) {
+        Raster raster;
+        synchronized (rasters) {
+            raster = rasters.get(window);
+        }
+        if (raster != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return raster;
+    }
+
+    /**
+     * Caches the raster for a window of tiles, evicting the least recently used rasters
+     * while the cache is over its size. A raster larger than the whole cache is not kept.
+     * @param window The window.
+     * @param raster The raster drawn from its tiles.
+     */
+    public void put(Rasterer.Window window, Raster raster) {
+        synchronized (rasters) {
+            Raster replaced = rasters.put(window, raster);
+            bytes += raster.bytes() - (replaced == null ? 0 : replaced.bytes());
+            Iterator<Raster> eldest = rasters.values().iterator();
+            while (bytes > capacityBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes();
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Removes every cached raster. */
+    public void clear() {
+        synchronized (rasters) {
+            rasters.clear();
+            bytes = 0;
+        }
+    }
+
+    /** Returns the number of cached rasters. */
+    public int size() {
+        synchronized (rasters) {
+            return rasters.size();
+        }
+    }
+
+    /** Returns the bytes the cached rasters' PNG images take. */
+    public long bytes() {
+        synchronized (rasters) {
+            return bytes;
+        }
+    }
+
+    /** Returns the cache's counters and sizes, keyed for a JSON response. */
+    Map<String, Object> toMap() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("hits", hitCount);
+        map.put("misses", total - hitCount);
+        map.put("hit_rate", total == 0 ? 0 : (double) hitCount / total);
+        map.put("rasters", size());
+        map.put("bytes", bytes());
+        map.put("capacity_bytes", capacityBytes);
+        return map;
+    }
+
+    /** A finished raster: its PNG image and its size in pixels. */
+    public static class Raster {
+        /** The PNG-encoded image, which must not be modified. */
+        public final byte[] png;
+        public final int width;
+        public final int height;
+
+        public Raster(byte[] png, int width, int height) {
+            this.png = png;
+            this.width = width;
+            this.height = height;
+        }
+
+        long bytes() {
+            return png.length;
+        }
+    }
+}
@@ -6,25 +6,34 @@ import java.util.Map;
  * a query result. The getMapRaster method must return a Map containing all
  * seven of the required fields, otherwise the front end code will probably
  * not draw the output correctly.
+ *
+ * A Rasterer keeps no state between queries: each query is computed from its Request
+ * into a new Window, so one instance serves any number of threads at once. The
+ * longitudinal distance per pixel and the tile sizes of every depth are computed once,
+ * and tile file names are only built for callers that ask for them.
  */
 public class Rasterer {
-    private Map<String, Double> parameters;
-    private String[][] renderGrid;
-    private double lonDPP;
-    private double lonLength;
-    private double latLength;
-    private double ullon;
-    private double ullat;
-    private double lrlon;
-    private double lrlat;
-    private double xMin;
-    private double xMax;
-    private double yMin;
-    private double yMax;
-    private int depth;
+    /** Deepest tile depth. */
+    static final int MAX_DEPTH = 7;
+    /**
+     * The longitudinal distance per pixel of the tiles at each depth; depth d is picked for
+     * the shallowest d whose tiles have at most the query's distance per pixel.
+     */
+    private static final double[] LON_DPP = {0.00034332275390625, 0.000171661376953125,
+        0.0000858306884765625, 0.00004291534423828125, 0.000021457672119140625,
+        0.000010728836059570312, 0.000005364418029785156, 0.0};
+    /** The longitude and (negative) latitude spanned by one tile at each depth. */
+    private static final double[] LON_LENGTHS = new double[MAX_DEPTH + 1];
+    private static final double[] LAT_LENGTHS = new double[MAX_DEPTH + 1];
+
+    static {
+        for (int d = 0; d <= MAX_DEPTH; d++) {
+            LON_LENGTHS[d] = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / Math.pow(2, d);
+            LAT_LENGTHS[d] = (MapServer.ROOT_LRLAT - MapServer.ROOT_ULLAT) / Math.pow(2, d);
+        }
+    }
 
     public Rasterer() {
-        // YOUR CODE HERE
     }
 
     /**
@@ -56,106 +65,151 @@ public class Rasterer {
      *                    forget to set this to true on success! <br>
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        parameters = params;
-        Map<String, Object> results = new TreeMap<>();
-        doCalculations();
-        results.put("raster_ul_lon", ullon);
-        results.put("raster_ul_lat", ullat);
-        results.put("raster_lr_lon", lrlon);
-        results.put("raster_lr_lat", lrlat);
-        results.put("depth", depth);
-        renderGrid = new String[(int) (yMax - yMin)][(int) (xMax - xMin)];
-        int colIndex = 0;
-        int rowIndex = 0;
-        for (int y = (int) yMin; y < yMax; y++) {
-            for (int x = (int) xMin; x < xMax; x++) {
-                renderGrid[rowIndex][colIndex++] = "d" + depth + "_x" + x + "_y" + y + ".png";
-            }
-            colIndex = 0;
-            rowIndex += 1;
-        }
-
-        results.put("render_grid", renderGrid);
+        return window(Request.of(params)).toMap();
+    }
 
-        if (ullon > lrlon) {
-            results.put("query_success", false);
-        } else {
-            results.put("query_success", true);
+    /**
+     * Finds the window of tiles that best matches a query, as getMapRaster does.
+     * @param request The query box and the viewport size.
+     * @return The window.
+     */
+    public Window window(Request request) {
+        double lonDPP = (request.lrlon - request.ullon) / request.w;
+        int depth = 0;
+        while (depth < MAX_DEPTH && LON_DPP[depth] > lonDPP) {
+            depth += 1;
         }
-        return results;
+        double lonLength = LON_LENGTHS[depth];
+        double latLength = LAT_LENGTHS[depth];
+        int xMin = (int) Math.floor((request.ullon - MapServer.ROOT_ULLON) / lonLength);
+        int yMin = (int) Math.floor((request.ullat - MapServer.ROOT_ULLAT) / latLength);
+        int xMax = (int) Math.ceil((request.lrlon - MapServer.ROOT_ULLON) / lonLength);
+        int yMax = (int) Math.ceil((request.lrlat - MapServer.ROOT_ULLAT) / latLength);
+        return new Window(depth, xMin, xMax, yMin, yMax,
+                MapServer.ROOT_ULLON + xMin * lonLength, MapServer.ROOT_ULLAT + yMin * latLength,
+                MapServer.ROOT_ULLON + xMax * lonLength, MapServer.ROOT_ULLAT + yMax * latLength);
     }
 
-    private void doCalculations() {
-        calcDDP();
-        calcDepth();
-        calcLengths();
-        calcXMin();
-        calcYMin();
-        calcXMax();
-        calcYMax();
-        calcULLON();
-        calcULLAT();
-        calcLRLON();
-        calcLRLAT();
+    /** Returns the file name of the tile at a depth and position. */
+    static String tileName(int depth, int x, int y) {
+        return "d" + depth + "_x" + x + "_y" + y + ".png";
     }
 
-    private void calcDDP() {
-        lonDPP =  (parameters.get("lrlon") - parameters.get("ullon")) / (parameters.get("w"));
-    }
+    /** A raster query: the query box and the width and height of the viewport in pixels. */
+    public static final class Request {
+        final double ullon;
+        final double ullat;
+        final double lrlon;
+        final double lrlat;
+        final double w;
+        final double h;
+
+        public Request(double ullon, double ullat, double lrlon, double lrlat, double w,
+                       double h) {
+            this.ullon = ullon;
+            this.ullat = ullat;
+            this.lrlon = lrlon;
+            this.lrlat = lrlat;
+            this.w = w;
+            this.h = h;
+        }
 
-    private void calcDepth() {
-        Double[] allDPPVals = new Double[8];
-        allDPPVals[0] = 0.00034332275390625;
-        allDPPVals[1] = 0.000171661376953125;
-        allDPPVals[2] = 0.0000858306884765625;
-        allDPPVals[3] = 0.00004291534423828125;
-        allDPPVals[4] = 0.000021457672119140625;
-        allDPPVals[5] = 0.000010728836059570312;
-        allDPPVals[6] = 0.000005364418029785156;
-        allDPPVals[7] = 0.0;
-
-        for (int d = 0; d < allDPPVals.length; d++) {
-            if (allDPPVals[d] <= lonDPP) {
-                depth = d;
-                return;
-            }
+        /** Returns the request the query parameters of an HTTP request give. */
+        public static Request of(Map<String, Double> params) {
+            return new Request(params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                    params.get("lrlat"), params.get("w"), params.get("h"));
         }
     }
 
-    private void calcLengths() {
-        lonLength = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / Math.pow(2, depth);
-        latLength = (MapServer.ROOT_LRLAT - MapServer.ROOT_ULLAT) / Math.pow(2, depth);
-    }
+    /**
+     * The tiles a raster is drawn from: those at one depth with x in [xMin, xMax) and y in
+     * [yMin, yMax), and the box they cover. Windows with the same tiles are equal.
+     */
+    public static final class Window {
+        final int depth;
+        final int xMin;
+        final int xMax;
+        final int yMin;
+        final int yMax;
+        final double ulLon;
+        final double ulLat;
+        final double lrLon;
+        final double lrLat;
+
+        Window(int depth, int xMin, int xMax, int yMin, int yMax, double ulLon, double ulLat,
+               double lrLon, double lrLat) {
+            this.depth = depth;
+            this.xMin = xMin;
+            this.xMax = xMax;
+            this.yMin = yMin;
+            this.yMax = yMax;
+            this.ulLon = ulLon;
+            this.ulLat = ulLat;
+            this.lrLon = lrLon;
+            this.lrLat = lrLat;
+        }
 
-    private void calcXMin() {
-        xMin = Math.floor((parameters.get("ullon") - MapServer.ROOT_ULLON) / lonLength);
-    }
+        /** Returns whether the query succeeded, which it does unless its box is inverted. */
+        boolean success() {
+            return !(ulLon > lrLon);
+        }
 
-    private void calcLRLON() {
-        lrlon = MapServer.ROOT_ULLON + (xMax) * lonLength;
-    }
+        int rows() {
+            return Math.max(0, yMax - yMin);
+        }
 
-    private void calcYMin() {
-        yMin = Math.floor((parameters.get("ullat") - MapServer.ROOT_ULLAT) / latLength);
-    }
+        int columns() {
+            return Math.max(0, xMax - xMin);
+        }
 
-    private void calcLRLAT() {
-        lrlat = MapServer.ROOT_ULLAT + (yMax) * latLength;
-    }
+        /** Returns the file name of the tile at a row and column of the window. */
+        String tileName(int row, int column) {
+            return Rasterer.tileName(depth, xMin + column, yMin + row);
+        }
 
-    private void calcXMax() {
-        xMax = Math.ceil((parameters.get("lrlon") - MapServer.ROOT_ULLON) / lonLength);
-    }
+        /** Returns the file names of the window's tiles, row by row. */
+        String[][] renderGrid() {
+            String[][] renderGrid = new String[rows()][columns()];
+            for (int r = 0; r < renderGrid.length; r++) {
+                for (int c = 0; c < renderGrid[r].length; c++) {
+                    renderGrid[r][c] = tileName(r, c);
+                }
+            }
+            return renderGrid;
+        }
 
-    private void calcULLON() {
-        ullon = MapServer.ROOT_ULLON + (xMin) * lonLength;
-    }
+        /** Returns every result getMapRaster lists except the render grid. */
+        Map<String, Object> metadata() {
+            Map<String, Object> results = new TreeMap<>();
+            results.put("raster_ul_lon", ulLon);
+            results.put("raster_ul_lat", ulLat);
+            results.put("raster_lr_lon", lrLon);
+            results.put("raster_lr_lat", lrLat);
+            results.put("depth", depth);
+            results.put("query_success", success());
+            return results;
+        }
 
-    private void calcYMax() {
-        yMax = Math.ceil((parameters.get("lrlat") - MapServer.ROOT_ULLAT) / latLength);
-    }
+        /** Returns the results getMapRaster lists. */
+        Map<String, Object> toMap() {
+            Map<String, Object> results = metadata();
+            results.put("render_grid", renderGrid());
+            return results;
+        }
 
-    private void calcULLAT() {
-        ullat = MapServer.ROOT_ULLAT + (yMin) * latLength;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Window)) {
+                return false;
+            }
+            Window other = (Window) o;
+            return depth == other.depth && xMin == other.xMin && xMax == other.xMax
+                    && yMin == other.yMin && yMax == other.yMax;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((depth * 31 + xMin) * 31 + xMax) * 31 + yMin) * 31 + yMax;
+        }
     }
 }
@@ -0,0 +1,454 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of routes over one graph, keyed by the road segments the start and
+ * destination snap to and the metric the route minimizes. Each entry holds the best paths
+ * from either end of the start segment to either end of the destination segment. A query
+ * adds the parts of the two segments between its points and their ends and takes the
+ * lightest of the four combinations, so queries whose points snap to the same two
+ * segments share an entry however far apart along them the points lie. The route last
+ * assembled from an entry is kept with it, together with its navigation directions, so
+ * an exactly repeated query costs only the two snapping lookups.
+ *
+ * When full, the least recently used entry is evicted. Every algorithm Router offers
+ * returns a best path under the metric asked for, so a cached entry answers a query
+ * whatever algorithm it asks for. For the same reason, a query for an entry that is
+ * already being computed waits for that computation rather than repeating it. A cache
+ * belongs to the graph it was created with; reloading the graph means creating a new
+ * cache, which drops every route computed on the old one.
+ */
+public class RouteCache {
+    private final GraphDB graph;
+    private final LinkedHashMap<Key, Legs> routes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    /** Entries being computed, so that queries between the same segments wait for them. */
+    private final ConcurrentHashMap<Key, Computation> computing = new ConcurrentHashMap<>();
+    /** Runs route computations, or null to run them on the querying thread. */
+    private final Executor executor;
+
+    /**
+     * Creates an empty cache that computes routes on the threads querying it.
+     * @param graph The graph routes are computed on.
+     * @param capacity The largest number of segment pairs to keep routes between.
+     */
+    public RouteCache(GraphDB graph, int capacity) {
+        this(graph, capacity, null);
+    }
+
+    /**
+     * Creates an empty cache.
+     * @param graph The graph routes are computed on.
+     * @param capacity The largest number of segment pairs to keep routes between.
+     * @param executor The executor to compute routes on, or null to compute them on the
+     *                 threads querying the cache.
+     */
+    public RouteCache(GraphDB graph, int capacity, Executor executor) {
+        this.graph = graph;
+        this.executor = executor;
+        this.routes = new LinkedHashMap<Key, Legs>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Legs> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the route between the points on the road network closest to two locations,
+     * computing and caching it if it is not cached yet.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param algorithm The search algorithm to use if the route is not cached.
+     * @return The shortest route.
+     */
+    public Route route(double stlon, double stlat, double destlon, double destlat,
+                       Router.Algorithm algorithm) {
+        return route(stlon, stlat, destlon, destlat, algorithm, Router.Metric.SHORTEST);
+    }
+
+    /**
+     * Returns the best route under a metric between the points on the road network
+     * closest to two locations, computing and caching it if it is not cached yet.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param algorithm The search algorithm to use if the route is not cached.
+     * @param metric What the route minimizes.
+     * @return The route.
+     */
+    public Route route(double stlon, double stlat, double destlon, double destlat,
+                       Router.Algorithm algorithm, Router.Metric metric) {
+        return route(stlon, stlat, destlon, destlat, algorithm, metric, null);
+    }
+
+    /**
+     * Returns the best route under a metric between the points on the road network
+     * closest to two locations, as route above, recording what the query cost in stats.
+     * @param stats The statistics to record, or null to collect none.
+     */
+    Route route(double stlon, double stlat, double destlon, double destlat,
+                Router.Algorithm algorithm, Router.Metric metric, QueryStats stats) {
+        try {
+            return route(stlon, stlat, destlon, destlat, algorithm, metric, stats, -1);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("timed out without a timeout", e);
+        }
+    }
+
+    /**
+     * Returns the best route under a metric between the points on the road network
+     * closest to two locations, giving up once a timeout has passed.
+     *
+     * Paths between segments not cached yet are computed on the cache's executor, and
+     * queries between the same segments that arrive while they are being computed wait for
+     * that computation instead of starting their own. A query that runs out of time stops
+     * waiting; once every query waiting for a computation has, its searches are
+     * interrupted and nothing is cached.
+     * @param stats The statistics to record, or null to collect none. A query that waits
+     *              for another query's computation records no search work, and the search
+     *              time of one that starts a computation includes the wait for a thread.
+     * @param timeoutNanos How long to wait for the route, or -1 to wait as long as it takes.
+     * @return The route.
+     * @throws TimeoutException If the route is not found in time.
+     * @throws java.util.concurrent.RejectedExecutionException If the executor refuses to
+     *         compute the route, as a bounded one does when its queue is full.
+     */
+    Route route(double stlon, double stlat, double destlon, double destlat,
+                Router.Algorithm algorithm, Router.Metric metric, QueryStats stats,
+                long timeoutNanos) throws TimeoutException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        if (stats != null) {
+            stats.start();
+        }
+        SegmentIndex.Snap start = graph.snap(stlon, stlat);
+        SegmentIndex.Snap end = graph.snap(destlon, destlat);
+        if (stats != null) {
+            stats.snapped();
+        }
+        if (start == null || end == null) {
+            return new Route(Router.Path.EMPTY, Collections.emptyList(),
+                    Collections.emptyList());
+        }
+        Key key = new Key(start, end, metric);
+        while (true) {
+            Legs legs;
+            synchronized (routes) {
+                legs = routes.get(key);
+            }
+            if (legs != null) {
+                hits.incrementAndGet();
+                if (stats != null) {
+                    stats.cached = true;
+                }
+                return legs.route(start, end, stats);
+            }
+            Computation computation = new Computation(key, algorithm, stats);
+            Computation running = computing.putIfAbsent(key, computation);
+            if (running == null) {
+                misses.incrementAndGet();
+                if (executor == null) {
+                    computation.run();
+                } else {
+                    try {
+                        executor.execute(computation);
+                    } catch (RejectedExecutionException e) {
+                        computation.reject(e);
+                    }
+                }
+                return computation.await(timeoutNanos < 0 ? -1 : deadline)
+                        .route(start, end, stats);
+            }
+            if (running.join()) {
+                coalesced.incrementAndGet();
+                if (stats != null) {
+                    stats.coalesced = true;
+                }
+                return running.await(timeoutNanos < 0 ? -1 : deadline)
+                        .route(start, end, stats);
+            }
+            /* Every query waiting for it gave up just now, so it is being cancelled. */
+            computing.remove(key, running);
+        }
+    }
+
+    /** Removes every cached entry. */
+    public void clear() {
+        synchronized (routes) {
+            routes.clear();
+        }
+    }
+
+    /** Returns the number of segment pairs routes are cached between. */
+    public int size() {
+        synchronized (routes) {
+            return routes.size();
+        }
+    }
+
+    /** Returns the number of queries answered from the cache. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Returns the number of queries that had to compute their route. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Returns the number of queries that waited for another query's computation. */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * An entry being computed, shared by the queries for it that arrive before it is done.
+     * It leaves the table of computations in progress as soon as it is done, by which time
+     * the entry it found is in the cache.
+     */
+    private final class Computation extends FutureTask<Legs> {
+        private final Key key;
+        /** Queries still waiting for the route; cancelled once this drops to 0. */
+        private int waiters = 1;
+
+        Computation(Key key, Router.Algorithm algorithm, QueryStats stats) {
+            super(() -> compute(key, algorithm, stats));
+            this.key = key;
+        }
+
+        /** Adds a waiting query, unless every earlier one has already given up. */
+        synchronized boolean join() {
+            if (waiters == 0) {
+                return false;
+            }
+            waiters += 1;
+            return true;
+        }
+
+        /** Removes a waiting query, cancelling the searches if no query is left waiting. */
+        void leave() {
+            boolean last;
+            synchronized (this) {
+                waiters -= 1;
+                last = waiters == 0;
+            }
+            if (last) {
+                cancel(true);
+            }
+        }
+
+        /** Fails the computation without running it, for every query waiting for it. */
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        /**
+         * Waits for the entry.
+         * @param deadline The System.nanoTime() by which to give up, or -1 for none.
+         */
+        Legs await(long deadline) throws TimeoutException {
+            try {
+                return deadline < 0 ? get() : get(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                leave();
+                throw e;
+            } catch (InterruptedException e) {
+                leave();
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted waiting for a route");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        @Override
+        protected void done() {
+            computing.remove(key, this);
+        }
+    }
+
+    /**
+     * Finds the paths between the ends of two segments and caches them, with one search
+     * from each end of the start segment that runs until both ends of the destination
+     * segment are settled.
+     */
+    private Legs compute(Key key, Router.Algorithm algorithm, QueryStats stats) {
+        int[] starts = {key.startFrom, key.startTo};
+        int[] ends = {key.endFrom, key.endTo};
+        DoubleBuffer weights = graph.edgeWeights(key.metric);
+        Router.Path[] paths = new Router.Path[4];
+        double[] lengths = new double[4];
+        Arrays.fill(lengths, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < 2; i++) {
+            /* A point at a vertex has a single end. */
+            if (i > 0 && starts[1] == starts[0]) {
+                break;
+            }
+            Router.Path[] found = Router.findPaths(graph, starts[i], ends, algorithm,
+                    key.metric, stats);
+            for (int j = 0; j < 2; j++) {
+                if (found[j] != null) {
+                    paths[2 * i + j] = found[j];
+                    lengths[2 * i + j] = found[j].weight(weights);
+                }
+            }
+        }
+        if (stats != null) {
+            stats.searched();
+        }
+        Legs legs = new Legs(paths, lengths, weights);
+        synchronized (routes) {
+            routes.put(key, legs);
+        }
+        return legs;
+    }
+
+    /**
+     * The best paths between the ends of a start segment and the ends of a destination
+     * segment, from which the route between any two points on them is assembled.
+     */
+    private final class Legs {
+        /**
+         * The path from end i of the start segment to end j of the destination segment,
+         * where end 0 is from and end 1 is to, at 2 * i + j, or null if there is none.
+         */
+        private final Router.Path[] paths;
+        /** The weight of each path, or infinity where there is none. */
+        private final double[] lengths;
+        private final DoubleBuffer weights;
+        /* The route last assembled and the points it runs between, guarded by this. */
+        private Route last;
+        private SegmentIndex.Snap lastStart;
+        private SegmentIndex.Snap lastEnd;
+
+        Legs(Router.Path[] paths, double[] lengths, DoubleBuffer weights) {
+            this.paths = paths;
+            this.lengths = lengths;
+            this.weights = weights;
+        }
+
+        /**
+         * Returns the route between two points on the segments, reusing the last one
+         * assembled if the points are the same.
+         */
+        synchronized Route route(SegmentIndex.Snap start, SegmentIndex.Snap end,
+                                 QueryStats stats) {
+            if (last == null || !start.equals(lastStart) || !end.equals(lastEnd)) {
+                Router.Path path = join(start, end);
+                last = new Route(path, path.ids(graph), Router.routeDirections(graph, path));
+                lastStart = start;
+                lastEnd = end;
+            }
+            if (stats != null) {
+                stats.directed();
+            }
+            return last;
+        }
+
+        /**
+         * Returns the lightest path between two points on the segments: along the segment
+         * if both lie on the same one, or out of the start segment by one end, along a
+         * cached path, and into the destination segment by one end.
+         */
+        private Router.Path join(SegmentIndex.Snap start, SegmentIndex.Snap end) {
+            double best = start.onSegment() && start.edge == end.edge
+                    ? Math.abs(start.fraction - end.fraction) * weights.get(start.edge)
+                    : Double.POSITIVE_INFINITY;
+            Router.Path path = best < Double.POSITIVE_INFINITY
+                    ? new Router.Path(new int[0], new int[0]) : null;
+            for (int i = 0; i < 2; i++) {
+                double out = i == 0 ? start.fromWeight(weights) : start.toWeight(weights);
+                for (int j = 0; j < 2; j++) {
+                    double in = j == 0 ? end.fromWeight(weights) : end.toWeight(weights);
+                    double total = out + lengths[2 * i + j] + in;
+                    if (total < best) {
+                        best = total;
+                        path = paths[2 * i + j];
+                    }
+                }
+            }
+            return path == null ? Router.Path.EMPTY : path.between(start, end);
+        }
+    }
+
+    /** A cached route: the vertices along it and the directions for following it. */
+    public static class Route {
+        /** The path found, with the snapped points it runs between, for its geometry. */
+        final Router.Path geometry;
+        /**
+         * The ids of the vertices on the route, or an empty list if there is none or it
+         * never leaves the segment it starts on.
+         */
+        public final List<Long> path;
+        public final List<Router.NavigationDirection> directions;
+
+        Route(Router.Path found, List<Long> path, List<Router.NavigationDirection> directions) {
+            this.geometry = found;
+            this.path = Collections.unmodifiableList(path);
+            this.directions = Collections.unmodifiableList(directions);
+        }
+    }
+
+    /**
+     * Identifies an entry: the ends of the segments its points lie on, which are the same
+     * vertex for a point at a vertex, and its metric.
+     */
+    private static final class Key {
+        private final int startFrom;
+        private final int startTo;
+        private final int endFrom;
+        private final int endTo;
+        private final Router.Metric metric;
+
+        Key(SegmentIndex.Snap start, SegmentIndex.Snap end, Router.Metric metric) {
+            this.startFrom = start.from;
+            this.startTo = start.to;
+            this.endFrom = end.from;
+            this.endTo = end.to;
+            this.metric = metric;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return startFrom == other.startFrom && startTo == other.startTo
+                    && endFrom == other.endFrom && endTo == other.endTo
+                    && metric == other.metric;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * (31 * startFrom + startTo) + endFrom) + endTo)
+                    + metric.ordinal();
+        }
+    }
+}
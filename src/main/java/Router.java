@@ -1,11 +1,18 @@
+import java.nio.DoubleBuffer;
 import java.util.Objects;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ObjIntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import edu.princeton.cs.algs4.MinPQ;
+import java.util.stream.IntStream;
 
 /**
  * This class provides a shortestPath method for finding routes between two points
@@ -16,10 +23,88 @@ import edu.princeton.cs.algs4.MinPQ;
  * down to the priority you use to order your vertices.
  */
 public class Router {
+    /** The search algorithms shortestPath can use. All of them return shortest paths. */
+    public enum Algorithm {
+        /** A* over the road graph; needs no preprocessing. */
+        A_STAR,
+        /** A* guided by landmark distances as well as straight-line distances. */
+        ALT,
+        /** A* from both endpoints at once, meeting in the middle. */
+        BIDIRECTIONAL_A_STAR,
+        /** Bidirectional search over the graph's contraction hierarchy. */
+        CONTRACTION_HIERARCHY;
+
+        /**
+         * Parses an algorithm name as used in configuration and requests: "astar",
+         * "alt", "bidirectional" or "ch".
+         * @param name The name.
+         * @return The algorithm.
+         * @throws IllegalArgumentException If the name is not recognized.
+         */
+        public static Algorithm forName(String name) {
+            switch (name.toLowerCase()) {
+                case "astar":
+                    return A_STAR;
+                case "alt":
+                    return ALT;
+                case "bidirectional":
+                    return BIDIRECTIONAL_A_STAR;
+                case "ch":
+                    return CONTRACTION_HIERARCHY;
+                default:
+                    throw new IllegalArgumentException("unknown routing algorithm " + name);
+            }
+        }
+    }
+
+    /** What a route minimizes. Every algorithm supports every metric. */
+    public enum Metric {
+        /** Road distance in miles. */
+        SHORTEST,
+        /** Travel time in seconds, at each way's maximum or default speed. */
+        FASTEST;
+
+        /** The number of metrics, for arrays indexed by ordinal. */
+        static final int COUNT = values().length;
+
+        /**
+         * Parses a metric name as used in requests: "shortest" or "fastest".
+         * @param name The name.
+         * @return The metric.
+         * @throws IllegalArgumentException If the name is not recognized.
+         */
+        public static Metric forName(String name) {
+            switch (name.toLowerCase()) {
+                case "shortest":
+                    return SHORTEST;
+                case "fastest":
+                    return FASTEST;
+                default:
+                    throw new IllegalArgumentException("unknown routing metric " + name);
+            }
+        }
+    }
+
+    /** Each thread's forward and backward search states, reused by every query. */
+    private static final ThreadLocal<SearchState[]> SEARCH_STATES = new ThreadLocal<>();
+
+    /** The algorithm used when none is given; the server sets it from its configuration. */
+    private static volatile Algorithm defaultAlgorithm = Algorithm.A_STAR;
+
+    /** Sets the algorithm shortestPath uses when none is given. */
+    public static void setDefaultAlgorithm(Algorithm algorithm) {
+        defaultAlgorithm = algorithm;
+    }
+
+    /** Returns the algorithm shortestPath uses when none is given. */
+    public static Algorithm getDefaultAlgorithm() {
+        return defaultAlgorithm;
+    }
+
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
-     * location.
+     * location, found with the default algorithm.
      * @param g The graph to use.
      * @param stlon The longitude of the start location.
      * @param stlat The latitude of the start location.
@@ -29,52 +114,674 @@ public class Router {
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, defaultAlgorithm);
+    }
+
+    /**
+     * Return a List of longs representing the shortest path from the node
+     * closest to a start location and the node closest to the destination
+     * location.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param algorithm The search algorithm to use. ALT and CONTRACTION_HIERARCHY build
+     *                  the graph's landmarks or hierarchy first if it does not have them yet.
+     * @return A list of node id's in the order visited on the shortest path.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          Algorithm algorithm) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, algorithm, Metric.SHORTEST);
+    }
+
+    /**
+     * Return a List of longs representing the best path under a metric from the node
+     * closest to a start location and the node closest to the destination location.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param algorithm The search algorithm to use.
+     * @param metric What the path minimizes.
+     * @return A list of node id's in the order visited on the best path.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          Algorithm algorithm, Metric metric) {
+        return findPath(g, g.closestIndex(stlon, stlat), g.closestIndex(destlon, destlat),
+                algorithm, metric).ids(g);
+    }
+
+    /**
+     * Returns the best path under a metric between two vertices.
+     * @param g The graph to use.
+     * @param startNode The index of the start vertex, or -1 if there is none.
+     * @param endNode The index of the destination vertex, or -1 if there is none.
+     * @param algorithm The search algorithm to use.
+     * @param metric What the path minimizes.
+     * @return The path, which is empty if there is none.
+     */
+    static Path findPath(GraphDB g, int startNode, int endNode, Algorithm algorithm,
+                         Metric metric) {
+        return findPath(g, startNode, endNode, algorithm, metric, null);
+    }
+
+    /**
+     * Returns the best path under a metric between two vertices, as findPath above,
+     * adding the work the search did to stats.
+     * @param stats The statistics to add to, or null to collect none.
+     */
+    static Path findPath(GraphDB g, int startNode, int endNode, Algorithm algorithm,
+                         Metric metric, QueryStats stats) {
+        return findPath(g, SegmentIndex.Snap.at(g, startNode), SegmentIndex.Snap.at(g, endNode),
+                algorithm, metric, stats);
+    }
+
+    /**
+     * Returns the best path under a metric between two snapped points. A point partway
+     * along a road segment can be left towards either end of it, so the search starts
+     * from both ends of the start segment, each at the weight of the part of the segment
+     * leading to it, and finishes at whichever end of the destination segment gives the
+     * lighter total. Two points on the same segment may also be joined along it directly.
+     * Points in different connected components are answered at once, without a search.
+     * @param g The graph to use.
+     * @param start The start point, or null if there is none.
+     * @param end The destination point, or null if there is none.
+     * @param algorithm The search algorithm to use.
+     * @param metric What the path minimizes.
+     * @param stats The statistics to add to, or null to collect none.
+     * @return The path, which is empty if there is none.
+     */
+    static Path findPath(GraphDB g, SegmentIndex.Snap start, SegmentIndex.Snap end,
+                         Algorithm algorithm, Metric metric, QueryStats stats) {
+        if (start == null || end == null || !g.connected(start.from, end.from)) {
+            return Path.EMPTY;
+        }
+        DoubleBuffer weights = g.edgeWeights(metric);
+        double direct = start.onSegment() && start.edge == end.edge
+                ? Math.abs(start.fraction - end.fraction) * weights.get(start.edge)
+                : Double.POSITIVE_INFINITY;
+        Path path;
+        if (algorithm == Algorithm.CONTRACTION_HIERARCHY) {
+            int[] vertices = g.contractionHierarchy(metric).shortestPath(start, end, weights,
+                    direct, stats);
+            path = null;
+            if (vertices != null) {
+                /* The hierarchy only keeps the lightest of parallel road segments, which is
+                 * the one its path follows. */
+                int[] edges = new int[Math.max(0, vertices.length - 1)];
+                for (int i = 0; i < edges.length; i++) {
+                    edges[i] = g.edgeBetween(vertices[i], vertices[i + 1], weights);
+                }
+                path = new Path(vertices, edges);
+            }
+        } else if (algorithm == Algorithm.BIDIRECTIONAL_A_STAR) {
+            path = bidirectionalRouteFinder(g, metric, start, end, direct);
+            if (stats != null) {
+                stats.addSearch(searchStates(g)[0]);
+                stats.addSearch(searchStates(g)[1]);
+            }
+        } else {
+            Landmarks landmarks = algorithm == Algorithm.ALT ? g.landmarks(metric) : null;
+            path = routeFinder(g, metric, landmarks, start, end, direct);
+            if (stats != null) {
+                stats.addSearch(searchStates(g)[0]);
+            }
+        }
+        if (path == null) {
+            if (direct == Double.POSITIVE_INFINITY) {
+                return Path.EMPTY;
+            }
+            path = new Path(new int[0], new int[0]);
+        }
+        return path.between(start, end);
+    }
 
-        MinPQ<SearchNode> searchQueue = new MinPQ<>();
-        long endNodeID = g.closest(destlon, destlat);
-        searchQueue.insert(new SearchNode(g, g.closest(stlon, stlat), endNodeID, null, 0));
-        try {
-            return routeFinder(g, endNodeID, searchQueue);
-        } catch (java.util.NoSuchElementException o) {
-            return new ArrayList<>();
+    /**
+     * Returns the best paths under a metric from one vertex to each of a few others, found
+     * with a single A* search that is guided towards the nearest of them and stops once
+     * every one it can reach is settled. The search uses landmarks if the algorithm is ALT,
+     * and the straight-line bound otherwise.
+     * @param g The graph to use.
+     * @param source The index of the start vertex.
+     * @param targets The indices of the destination vertices, which may repeat.
+     * @param algorithm The search algorithm asked for.
+     * @param metric What the paths minimize.
+     * @param stats The statistics to add to, or null to collect none.
+     * @return The path to targets[i] at i, or null where there is none.
+     */
+    static Path[] findPaths(GraphDB g, int source, int[] targets, Algorithm algorithm,
+                            Metric metric, QueryStats stats) {
+        Path[] paths = new Path[targets.length];
+        int[] reachable = Arrays.stream(targets).filter(t -> g.connected(source, t))
+                .distinct().toArray();
+        if (reachable.length == 0) {
+            return paths;
         }
+        DoubleBuffer weights = g.edgeWeights(metric);
+        Landmarks landmarks = algorithm == Algorithm.ALT ? g.landmarks(metric) : null;
+        SearchState search = searchStates(g)[0];
+        search.start();
+        search.reach(source, 0, -1, -1, estimate(g, metric, landmarks, source, reachable));
+        int remaining = reachable.length;
+        while (!search.open.isEmpty()) {
+            int v = search.open.pop();
+            double traveled = search.dist(v);
+            boolean found = false;
+            for (int i = 0; i < targets.length; i++) {
+                if (targets[i] == v && paths[i] == null) {
+                    paths[i] = Path.of(search, null, v);
+                    found = true;
+                }
+            }
+            if (found) {
+                remaining -= 1;
+                if (remaining == 0) {
+                    break;
+                }
+            }
+            search.countSettled(g.lastEdge(v) - g.firstEdge(v));
+            for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+                int w = g.edgeTarget(e);
+                double distance = traveled + weights.get(e);
+                if (distance < search.dist(w)) {
+                    search.reach(w, distance, v, e,
+                            distance + estimate(g, metric, landmarks, w, reachable));
+                }
+            }
+        }
+        if (stats != null) {
+            stats.addSearch(search);
+        }
+        return paths;
     }
 
+    /**
+     * Returns the best paths under a metric for many queries at once, each between the
+     * points on the road network closest to its start and destination locations.
+     * @param g The graph to use.
+     * @param stLons The longitudes of the start locations.
+     * @param stLats The latitudes of the start locations.
+     * @param destLons The longitudes of the destination locations, one per start.
+     * @param destLats The latitudes of the destination locations.
+     * @param algorithm The search algorithm to use.
+     * @param metric What the paths minimize.
+     * @return The path for query i at i, which is empty if there is none.
+     */
+    static Path[] findPaths(GraphDB g, double[] stLons, double[] stLats, double[] destLons,
+                            double[] destLats, Algorithm algorithm, Metric metric) {
+        Path[] paths = new Path[stLons.length];
+        findPaths(g, stLons, stLats, destLons, destLats, algorithm, metric, -1,
+                (path, i) -> paths[i] = path);
+        return paths;
+    }
 
-    private static List<Long> routeFinder(GraphDB map, long endNodeID,
-                                          MinPQ<SearchNode> searchQueue) {
-        SearchNode finalNode = null;
-        HashSet<Long> visited = new HashSet<>();
-        while (finalNode == null) {
-            SearchNode bestSearchNode = searchQueue.delMin();
-            visited.add(bestSearchNode.nodeID);
-            if (bestSearchNode.isFinished()) {
-                finalNode = bestSearchNode;
-            } else {
-                for (long nodeID : map.adjacent(bestSearchNode.nodeID)) {
-                    double distance = bestSearchNode.distanceTraveled
-                            + map.distance(bestSearchNode.nodeID, nodeID);
-                    if (!visited.contains(nodeID)) {
-                        SearchNode newSearchNode = new SearchNode(map, nodeID,
-                                endNodeID, bestSearchNode, distance);
-                        searchQueue.insert(newSearchNode);
+    /**
+     * Finds the best paths for many queries, as findPaths above, handing each to found as
+     * soon as it is found. Queries are snapped and searched in parallel on the fork-join
+     * pool the call is made from, or the common pool if it is not made from one, each
+     * worker reusing its own search state from query to query, so found is called from
+     * several threads at once and in no particular order. Once the deadline has passed or
+     * found has thrown, no further query is started.
+     * @param deadline The System.nanoTime() after which no further query is started, or
+     *                 -1 for none.
+     * @param found Receives each path with the index of its query.
+     * @throws CancellationException If the deadline passed before every query was started.
+     */
+    static void findPaths(GraphDB g, double[] stLons, double[] stLats, double[] destLons,
+                          double[] destLats, Algorithm algorithm, Metric metric, long deadline,
+                          ObjIntConsumer<Path> found) {
+        AtomicBoolean stopped = new AtomicBoolean();
+        IntStream.range(0, stLons.length).parallel().forEach(i -> {
+            if (stopped.get()) {
+                return;
+            }
+            if (deadline != -1 && System.nanoTime() - deadline > 0) {
+                stopped.set(true);
+                throw new CancellationException("batch timed out");
+            }
+            try {
+                SegmentIndex.Snap start = g.snap(stLons[i], stLats[i]);
+                SegmentIndex.Snap end = g.snap(destLons[i], destLats[i]);
+                found.accept(findPath(g, start, end, algorithm, metric, null), i);
+            } catch (RuntimeException e) {
+                stopped.set(true);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Returns the road distances between every origin and every destination, snapping
+     * each location to its closest vertex. Origins are searched from in parallel: with a
+     * bucket-based many-to-many search if the graph has a contraction hierarchy, or else
+     * with one Dijkstra search per origin that stops once every destination in the
+     * origin's connected component is settled.
+     * @param g The graph to use.
+     * @param originLons The longitudes of the origins.
+     * @param originLats The latitudes of the origins.
+     * @param destLons The longitudes of the destinations.
+     * @param destLats The latitudes of the destinations.
+     * @return The distance in miles from origin i to destination j at
+     * i * destLons.length + j, or infinity if the destination cannot be reached.
+     */
+    public static double[] distanceMatrix(GraphDB g, double[] originLons, double[] originLats,
+                                          double[] destLons, double[] destLats) {
+        return distanceMatrix(g, originLons, originLats, destLons, destLats, Metric.SHORTEST);
+    }
+
+    /**
+     * Returns the road distances or travel times between every origin and every
+     * destination, as distanceMatrix above, using the contraction hierarchy for the metric
+     * if the graph has one.
+     * @param metric What the entries measure.
+     * @return The weight of the best path from origin i to destination j at
+     * i * destLons.length + j, or infinity if the destination cannot be reached.
+     */
+    public static double[] distanceMatrix(GraphDB g, double[] originLons, double[] originLats,
+                                          double[] destLons, double[] destLats,
+                                          Metric metric) {
+        int[] sources = new int[originLons.length];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = g.closestIndex(originLons[i], originLats[i]);
+        }
+        int[] targets = new int[destLons.length];
+        for (int j = 0; j < targets.length; j++) {
+            targets[j] = g.closestIndex(destLons[j], destLats[j]);
+        }
+        ContractionHierarchy hierarchy = g.hierarchies[metric.ordinal()];
+        if (hierarchy != null) {
+            return hierarchy.distances(sources, targets);
+        }
+        DoubleBuffer weights = g.edgeWeights(metric);
+
+        /* Chain the destinations by vertex, so that settling a vertex finds them all, and
+         * count the distinct destination vertices in each component, since a search can
+         * only ever settle those in its own. */
+        int m = targets.length;
+        int[] firstTarget = new int[g.size()];
+        Arrays.fill(firstTarget, -1);
+        int[] nextTarget = new int[m];
+        Map<Integer, Integer> targetsByComponent = new HashMap<>();
+        for (int j = 0; j < m; j++) {
+            if (targets[j] >= 0) {
+                if (firstTarget[targets[j]] < 0) {
+                    targetsByComponent.merge(g.componentOf(targets[j]), 1, Integer::sum);
+                }
+                nextTarget[j] = firstTarget[targets[j]];
+                firstTarget[targets[j]] = j;
+            }
+        }
+        double[] result = new double[sources.length * m];
+        Arrays.fill(result, Double.POSITIVE_INFINITY);
+        IntStream.range(0, sources.length).parallel().filter(i -> sources[i] >= 0).forEach(i -> {
+            int remaining = targetsByComponent.getOrDefault(g.componentOf(sources[i]), 0);
+            if (remaining == 0) {
+                return;
+            }
+            SearchState search = searchStates(g)[0];
+            search.start();
+            search.reach(sources[i], 0, -1, -1, 0);
+            while (remaining > 0 && !search.open.isEmpty()) {
+                int v = search.open.pop();
+                double traveled = search.dist(v);
+                if (firstTarget[v] >= 0) {
+                    for (int j = firstTarget[v]; j >= 0; j = nextTarget[j]) {
+                        result[i * m + j] = traveled;
+                    }
+                    remaining -= 1;
+                }
+                for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+                    int w = g.edgeTarget(e);
+                    double distance = traveled + weights.get(e);
+                    if (distance < search.dist(w)) {
+                        search.reach(w, distance, v, e, distance);
                     }
                 }
             }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the calling thread's two search states, replacing them if they are too small
+     * for the graph.
+     */
+    static SearchState[] searchStates(GraphDB g) {
+        SearchState[] states = SEARCH_STATES.get();
+        if (states == null || states[0].capacity() < g.size()) {
+            states = new SearchState[] {new SearchState(g.size()), new SearchState(g.size())};
+            SEARCH_STATES.set(states);
         }
-        return path(finalNode);
+        return states;
     }
 
-    private static List<Long> path(SearchNode finalNode) {
-        SearchNode currSearchNode = finalNode;
-        LinkedList<Long> path = new LinkedList<>();
-        while (currSearchNode != null) {
-            path.addFirst(currSearchNode.nodeID);
-            currSearchNode = currSearchNode.previousNode;
+    /**
+     * Runs A* from the start point. Edge weights are the lengths or times precomputed by
+     * GraphDB, and the heuristic is estimate(), which is consistent up to rounding. Vertices
+     * are nevertheless reopened whenever a shorter path to them is found, so rounding can
+     * never cost optimality. A destination vertex ends the search as soon as it is
+     * settled; a destination partway along a segment ends it once nothing left open can
+     * beat the best total through either end of the segment.
+     * @param bound The search only looks for paths lighter than this.
+     * @return The path to the end of the destination segment it leaves from, or null if
+     * there is no path lighter than bound.
+     */
+    private static Path routeFinder(GraphDB map, Metric metric, Landmarks landmarks,
+                                    SegmentIndex.Snap start, SegmentIndex.Snap end,
+                                    double bound) {
+        DoubleBuffer weights = map.edgeWeights(metric);
+        double endFrom = end.fromWeight(weights);
+        double endTo = end.toWeight(weights);
+        SearchState search = searchStates(map)[0];
+        search.start();
+        double startFrom = start.fromWeight(weights);
+        search.reach(start.from, startFrom, -1, -1,
+                startFrom + estimate(map, metric, landmarks, start.from, end, endFrom, endTo));
+        double startTo = start.toWeight(weights);
+        if (startTo < search.dist(start.to)) {
+            search.reach(start.to, startTo, -1, -1,
+                    startTo + estimate(map, metric, landmarks, start.to, end, endFrom, endTo));
+        }
+        double best = bound;
+        int last = -1;
+        while (!search.open.isEmpty() && search.open.peekPriority() < best) {
+            int v = search.open.pop();
+            double traveled = search.dist(v);
+            if (v == end.from || v == end.to) {
+                double total = traveled + (v == end.from ? endFrom : endTo);
+                if (total < best) {
+                    best = total;
+                    last = v;
+                }
+                if (!end.onSegment()) {
+                    break;
+                }
+            }
+            search.countSettled(map.lastEdge(v) - map.firstEdge(v));
+            for (int e = map.firstEdge(v); e < map.lastEdge(v); e++) {
+                int w = map.edgeTarget(e);
+                double distance = traveled + weights.get(e);
+                if (distance < search.dist(w)) {
+                    search.reach(w, distance, v, e,
+                            distance + estimate(map, metric, landmarks, w, end, endFrom,
+                                    endTo));
+                }
+            }
+        }
+        return last < 0 ? null : Path.of(search, null, last);
+    }
+
+    /**
+     * Runs A* from both endpoints at once, using the average potentials
+     * p(v) = (estimate(v, end) - estimate(v, start)) / 2 for the forward search and -p(v)
+     * for the backward search. Since the estimates are consistent, both searches then see
+     * the same non-negative reduced edge weights, so this is bidirectional Dijkstra on
+     * the reduced graph: every time a vertex is reached by a shorter path the best route
+     * through it is recorded, and the search stops once the smallest keys of the two sides
+     * add up to at least the weight of the best route. Each side starts from both ends of
+     * its point's segment.
+     * @param bound The search only looks for paths lighter than this.
+     * @return The path between the segment ends it runs between, or null if there is no
+     * path lighter than bound.
+     */
+    private static Path bidirectionalRouteFinder(GraphDB g, Metric metric,
+                                                 SegmentIndex.Snap start,
+                                                 SegmentIndex.Snap end, double bound) {
+        DoubleBuffer weights = g.edgeWeights(metric);
+        Potentials potentials = new Potentials(g, metric, weights, start, end);
+        SearchState[] searches = searchStates(g);
+        seed(searches[0], potentials, 0, start, weights);
+        seed(searches[1], potentials, 1, end, weights);
+        double shortest = bound;
+        int meeting = -1;
+        for (int v : new int[] {start.from, start.to}) {
+            if (searches[0].dist(v) + searches[1].dist(v) < shortest) {
+                shortest = searches[0].dist(v) + searches[1].dist(v);
+                meeting = v;
+            }
+        }
+        IndexMinHeap forward = searches[0].open;
+        IndexMinHeap backward = searches[1].open;
+        while (!forward.isEmpty() && !backward.isEmpty()
+                && forward.peekPriority() + backward.peekPriority() < shortest) {
+            int side = forward.peekPriority() <= backward.peekPriority() ? 0 : 1;
+            SearchState search = searches[side];
+            SearchState other = searches[1 - side];
+            int v = search.open.pop();
+            double traveled = search.dist(v);
+            search.countSettled(g.lastEdge(v) - g.firstEdge(v));
+            for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+                int w = g.edgeTarget(e);
+                double distance = traveled + weights.get(e);
+                if (distance < search.dist(w)) {
+                    search.reach(w, distance, v, e, distance + potentials.of(side, w));
+                    if (distance + other.dist(w) < shortest) {
+                        shortest = distance + other.dist(w);
+                        meeting = w;
+                    }
+                }
+            }
+        }
+        return meeting < 0 ? null : Path.of(searches[0], searches[1], meeting);
+    }
+
+    /** Starts one side of a bidirectional search from both ends of its point's segment. */
+    private static void seed(SearchState search, Potentials potentials, int side,
+                             SegmentIndex.Snap point, DoubleBuffer weights) {
+        search.start();
+        double fromWeight = point.fromWeight(weights);
+        search.reach(point.from, fromWeight, -1, -1,
+                fromWeight + potentials.of(side, point.from));
+        double toWeight = point.toWeight(weights);
+        if (toWeight < search.dist(point.to)) {
+            search.reach(point.to, toWeight, -1, -1, toWeight + potentials.of(side, point.to));
         }
-        return path;
     }
 
+    /** The average potentials of one bidirectional search. */
+    private static final class Potentials {
+        private final GraphDB g;
+        private final Metric metric;
+        private final SegmentIndex.Snap start;
+        private final SegmentIndex.Snap end;
+        private final double startFrom;
+        private final double startTo;
+        private final double endFrom;
+        private final double endTo;
+
+        Potentials(GraphDB g, Metric metric, DoubleBuffer weights, SegmentIndex.Snap start,
+                   SegmentIndex.Snap end) {
+            this.g = g;
+            this.metric = metric;
+            this.start = start;
+            this.end = end;
+            this.startFrom = start.fromWeight(weights);
+            this.startTo = start.toWeight(weights);
+            this.endFrom = end.fromWeight(weights);
+            this.endTo = end.toWeight(weights);
+        }
+
+        /** Returns the potential of v for the forward (side 0) or backward (side 1) search. */
+        double of(int side, int v) {
+            double p = (estimate(g, metric, null, v, end, endFrom, endTo)
+                    - estimate(g, metric, null, v, start, startFrom, startTo)) / 2;
+            return side == 0 ? p : -p;
+        }
+    }
+
+    /**
+     * Returns a lower bound on the weight of any path from v to a snapped point: the
+     * smaller of the bounds through either end of its segment, each plus the weight of the
+     * part of the segment between that end and the point.
+     */
+    private static double estimate(GraphDB g, Metric metric, Landmarks landmarks, int v,
+                                   SegmentIndex.Snap point, double fromWeight,
+                                   double toWeight) {
+        double estimate = estimate(g, metric, landmarks, v, point.from) + fromWeight;
+        if (point.to != point.from) {
+            estimate = Math.min(estimate,
+                    estimate(g, metric, landmarks, v, point.to) + toWeight);
+        }
+        return estimate;
+    }
+
+    /** Returns a lower bound on the weight of any path from v to the nearest of targets. */
+    private static double estimate(GraphDB g, Metric metric, Landmarks landmarks, int v,
+                                   int[] targets) {
+        double estimate = Double.POSITIVE_INFINITY;
+        for (int t : targets) {
+            estimate = Math.min(estimate, estimate(g, metric, landmarks, v, t));
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns a lower bound on the weight of any path between two vertices: the
+     * straight-line bound, tightened by the landmark bound if landmarks are given.
+     */
+    private static double estimate(GraphDB g, Metric metric, Landmarks landmarks, int v,
+                                   int t) {
+        double estimate = g.heuristic(v, t, metric);
+        if (landmarks != null) {
+            estimate = Math.max(estimate, landmarks.lowerBound(v, t));
+        }
+        return estimate;
+    }
+
+    /**
+     * A path found by a search: the indices of its vertices and of the half-edges between
+     * consecutive vertices, which lets directions name each step without searching for
+     * the edge again. A path between snapped points also records the points it starts and
+     * ends at partway along a segment; two points on the same segment can be joined by a
+     * path with no vertices at all.
+     */
+    static final class Path {
+        static final Path EMPTY = new Path(new int[0], new int[0]);
+
+        /** The indices of the vertices on the path, in order. */
+        final int[] vertices;
+        /**
+         * The half-edge between vertices[i] and vertices[i + 1] at edges[i], or -1 where
+         * the two are not adjacent.
+         */
+        final int[] edges;
+        /** The point before the first vertex, or null if the path starts at that vertex. */
+        final SegmentIndex.Snap start;
+        /** The point after the last vertex, or null if the path ends at that vertex. */
+        final SegmentIndex.Snap end;
+
+        Path(int[] vertices, int[] edges) {
+            this(vertices, edges, null, null);
+        }
+
+        private Path(int[] vertices, int[] edges, SegmentIndex.Snap start,
+                     SegmentIndex.Snap end) {
+            this.vertices = vertices;
+            this.edges = edges;
+            this.start = start;
+            this.end = end;
+        }
+
+        /** Returns this path extended to the given points, where they lie on segments. */
+        Path between(SegmentIndex.Snap from, SegmentIndex.Snap to) {
+            return new Path(vertices, edges, from.onSegment() ? from : null,
+                    to.onSegment() ? to : null);
+        }
+
+        /** Returns whether this is the empty path, meaning no path was found. */
+        boolean isEmpty() {
+            return vertices.length == 0 && start == null;
+        }
+
+        /** Returns the number of points along the path, snapped points included. */
+        int points() {
+            return vertices.length + (start != null ? 1 : 0) + (end != null ? 1 : 0);
+        }
+
+        /** Returns the longitude of the i-th point along the path. */
+        double lon(GraphDB g, int i) {
+            if (start != null && i-- == 0) {
+                return start.lon;
+            }
+            return i < vertices.length ? g.lonAt(vertices[i]) : end.lon;
+        }
+
+        /** Returns the latitude of the i-th point along the path. */
+        double lat(GraphDB g, int i) {
+            if (start != null && i-- == 0) {
+                return start.lat;
+            }
+            return i < vertices.length ? g.latAt(vertices[i]) : end.lat;
+        }
+
+        /**
+         * Returns the half-edge the i-th leg of the path, from point i to point i + 1,
+         * runs along, or -1 if that is not known.
+         */
+        int edge(int i) {
+            if (start != null && i == 0) {
+                return start.edge;
+            }
+            if (end != null && i == points() - 2) {
+                return end.edge;
+            }
+            return edges[start != null ? i - 1 : i];
+        }
+
+        /**
+         * Reads a path off finished search states: from the source of forward to meeting,
+         * then along backward's parents from meeting to its source.
+         * @param backward The backward search, or null if meeting is the destination.
+         */
+        static Path of(SearchState forward, SearchState backward, int meeting) {
+            int front = 0;
+            for (int v = meeting; v >= 0; v = forward.parent(v)) {
+                front += 1;
+            }
+            int size = front;
+            for (int v = meeting; backward != null && backward.parent(v) >= 0;
+                 v = backward.parent(v)) {
+                size += 1;
+            }
+            int[] vertices = new int[size];
+            int[] edges = new int[size - 1];
+            int i = front - 1;
+            for (int v = meeting; v >= 0; v = forward.parent(v), i--) {
+                vertices[i] = v;
+                if (i > 0) {
+                    edges[i - 1] = forward.parentEdge(v);
+                }
+            }
+            i = front;
+            for (int v = meeting; i < size; v = backward.parent(v), i++) {
+                vertices[i] = backward.parent(v);
+                edges[i - 1] = backward.parentEdge(v);
+            }
+            return new Path(vertices, edges);
+        }
+
+        /** Returns the total weight of the half-edges between the path's vertices. */
+        double weight(DoubleBuffer weights) {
+            double total = 0;
+            for (int e : edges) {
+                total += weights.get(e);
+            }
+            return total;
+        }
+
+        /** Returns the ids of the vertices on the path. */
+        List<Long> ids(GraphDB g) {
+            List<Long> ids = new ArrayList<>(vertices.length);
+            for (int v : vertices) {
+                ids.add(g.idAt(v));
+            }
+            return ids;
+        }
+    }
 
     /**
      * Create the list of directions corresponding to a route on the graph.
@@ -85,51 +792,97 @@ public class Router {
      * route.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
-        ArrayList<NavigationDirection> directions = new ArrayList<>();
-        NavigationDirection currNav = new NavigationDirection();
-        currNav.direction = 0;
-        Double distanceTracker = 0.0;
-        String lastWay = "";
-        for (int i = 0; i < route.size() - 1; i += 1) {
-            for (GraphDB.Edge e : g.allNodes.get(route.get(i)).edges) {
-                if (e.v1 == route.get(i + 1) || e.v2 == route.get(i + 1)) {
-                    currNav.way = e.name;
-                    break;
+        int[] vertices = new int[route.size()];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = g.indexOf(route.get(i));
+        }
+        int[] edges = new int[Math.max(0, vertices.length - 1)];
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] = g.edgeBetween(vertices[i], vertices[i + 1]);
+        }
+        return routeDirections(g, new Path(vertices, edges));
+    }
+
+    /**
+     * Creates the list of directions for a path found by a search.
+     * @param g The graph the path was found on.
+     * @param path The path.
+     * @return The directions, as directions() generates them.
+     */
+    static List<NavigationDirection> routeDirections(GraphDB g, Path path) {
+        List<NavigationDirection> directions = new ArrayList<>();
+        for (Iterator<NavigationDirection> it = directions(g, path); it.hasNext();) {
+            directions.add(it.next());
+        }
+        return directions;
+    }
+
+    /**
+     * Generates the directions for a path one step at a time, so that a caller can
+     * start using the first steps before the rest are worked out.
+     *
+     * A step runs along consecutive legs of the same way, where a leg joins two
+     * consecutive points of the path: its vertices and any snapped points it starts or
+     * ends at. The first step starts the route; every later step turns by the angle
+     * between the bearings around the point where the way changes. Way names come from
+     * the half-edges the path records, and lengths and bearings straight from the
+     * coordinates, so no step needs an id lookup or any string formatting. A path with
+     * fewer than two points still gets a single, empty start step.
+     * @param g The graph the path was found on.
+     * @param path The path.
+     * @return An iterator over the steps, in order.
+     */
+    static Iterator<NavigationDirection> directions(GraphDB g, Path path) {
+        return new Iterator<NavigationDirection>() {
+            /** The next leg to walk; leg i runs from point i to point i + 1. */
+            private int leg = 0;
+            private int direction = NavigationDirection.START;
+            private String way = NavigationDirection.UNKNOWN_ROAD;
+            private double distance = 0;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                return !done;
+            }
+
+            @Override
+            public NavigationDirection next() {
+                if (done) {
+                    throw new NoSuchElementException();
+                }
+                int legs = path.points() - 1;
+                while (leg < legs) {
+                    int edge = path.edge(leg);
+                    String name = edge >= 0 ? g.edgeName(edge) : way;
+                    double length = GraphDB.distance(path.lon(g, leg), path.lat(g, leg),
+                            path.lon(g, leg + 1), path.lat(g, leg + 1));
+                    if (leg > 0 && !Objects.equals(name, way)) {
+                        NavigationDirection step = new NavigationDirection(direction, way,
+                                distance);
+                        direction = calcDirection(bearing(leg - 1) + bearing(leg));
+                        way = name;
+                        distance = length;
+                        leg += 1;
+                        return step;
+                    }
+                    way = name;
+                    distance += length;
+                    leg += 1;
                 }
+                done = true;
+                return new NavigationDirection(direction, way, distance);
             }
-            if (lastWay.isEmpty() || currNav.way.equals(lastWay)) {
-                distanceTracker += g.distance(route.get(i), route.get(i + 1));
-            } else {
-                NavigationDirection newStep = new NavigationDirection();
-                newStep.way = lastWay;
-                newStep.direction = currNav.direction;
-                newStep.distance = distanceTracker;
-                String stringStep = newStep.toString();
-                System.out.println("Change: " + stringStep);
-                directions.add(NavigationDirection.fromString(stringStep));
-                distanceTracker = g.distance(route.get(i), route.get(i + 1));
-                double angle = g.bearing(route.get(i - 1), route.get(i))
-                        + g.bearing(route.get(i), route.get(i + 1));
-                currNav.direction = calcDirection(angle);
-            }
-            //if (i > 0) {
-                //.out.println(lastWay + " to " + currNav.way + ": "
-                // + (g.bearing(route.get(i - 1), route.get(i))) + " "
-                // + g.bearing(route.get(i), route.get(i + 1)));
-                //System.out.println((g.bearing(route.get(i - 1), route.get(i))
-                // + g.bearing(route.get(i), route.get(i + 1))));
-            //}
-            lastWay = currNav.way;
-        }
-        currNav.distance = distanceTracker;
-        String currStep = currNav.toString();
-        directions.add(NavigationDirection.fromString(currStep));
-        System.out.println(directions);
-        return directions;
+
+            /** Returns the initial bearing of leg i. */
+            private double bearing(int i) {
+                return GraphDB.bearing(path.lon(g, i), path.lat(g, i), path.lon(g, i + 1),
+                        path.lat(g, i + 1));
+            }
+        };
     }
 
-    private static int calcDirection(Double angle) {
-        System.out.println("Angle: " + angle);
+    private static int calcDirection(double angle) {
         int direction = 0;
         if (Math.abs(angle) <= 15) {
             direction = 1;
@@ -146,7 +899,6 @@ public class Router {
         } else if (angle > 100) {
             direction = 7;
         }
-//        System.out.println("Direction: " + direction);
         return direction;
     }
 
@@ -173,6 +925,10 @@ public class Router {
         /** A mapping of integer values to directions.*/
         public static final String[] DIRECTIONS = new String[NUM_DIRECTIONS];
 
+        /** The form toString writes, as parsed by fromString. */
+        private static final Pattern STRING_FORM = Pattern.compile(
+                "([a-zA-Z\\s]+) on ([\\w\\s]*) and continue for ([0-9\\.]+) miles\\.");
+
         /** Default name for an unknown way. */
         public static final String UNKNOWN_ROAD = "unknown road";
         
@@ -204,6 +960,12 @@ public class Router {
             this.distance = 0.0;
         }
 
+        NavigationDirection(int direction, String way, double distance) {
+            this.direction = direction;
+            this.way = way;
+            this.distance = distance;
+        }
+
         public String toString() {
             return String.format("%s on %s and continue for %.3f miles.",
                     DIRECTIONS[direction], way, distance);
@@ -216,9 +978,7 @@ public class Router {
          * @return A NavigationDirection object representing the input string.
          */
         public static NavigationDirection fromString(String dirAsString) {
-            String regex = "([a-zA-Z\\s]+) on ([\\w\\s]*) and continue for ([0-9\\.]+) miles\\.";
-            Pattern p = Pattern.compile(regex);
-            Matcher m = p.matcher(dirAsString);
+            Matcher m = STRING_FORM.matcher(dirAsString);
             NavigationDirection nd = new NavigationDirection();
             if (m.matches()) {
                 String direction = m.group(1);
@@ -270,55 +1030,4 @@ public class Router {
             return Objects.hash(direction, way, distance);
         }
     }
-
-    static class SearchNode implements Comparable {
-        GraphDB map;
-        long nodeID;
-        long endNodeID;
-        SearchNode previousNode;
-        double distanceTraveled;
-        double estimatedRemaining;
-
-        SearchNode(GraphDB g, long curr, long end, SearchNode prev, double distTrav) {
-            map = g;
-            nodeID = curr;
-            endNodeID = end;
-            previousNode = prev;
-            distanceTraveled = distTrav;
-            estimatedRemaining = map.distance(nodeID, endNodeID);
-        }
-
-        boolean isFinished() {
-            return nodeID == endNodeID;
-        }
-
-        @Override
-        public int compareTo(Object o) {
-            SearchNode other = (SearchNode) o;
-            double myDistance = this.distanceTraveled + this.estimatedRemaining;
-            double otherDistance = other.distanceTraveled + other.estimatedRemaining;
-            double difference = myDistance - otherDistance;
-            if (difference < 0) {
-                return -1;
-            } else if (difference > 0) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o == null || this.getClass() != o.getClass()) {
-                return false;
-            }
-            SearchNode other = (SearchNode) o;
-            return this.nodeID == other.nodeID;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(nodeID);
-        }
-    }
 }
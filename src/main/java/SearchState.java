@@ -0,0 +1,115 @@
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The reusable state of one direction of a graph search: tentative distances, the
+ * vertex and half-edge each reached vertex was reached by, and the open set.
+ *
+ * Distances and parents are only meaningful for vertices stamped with the current
+ * generation, so start() resets the state for a new search by bumping the generation
+ * instead of refilling the arrays. Router keeps a couple of these per thread, which lets
+ * a query in steady state run without allocating anything but its result.
+ */
+class SearchState {
+    /** Searches check whether they have been cancelled once per this many settled vertices. */
+    private static final int CANCEL_INTERVAL = 1024;
+    private final double[] dist;
+    private final int[] parent;
+    private final int[] parentEdge;
+    /** The generation in which each vertex was last reached. */
+    private final int[] stamps;
+    private int generation;
+    /** Vertices settled and edges relaxed since start(), for query statistics. */
+    private int settled;
+    private long relaxed;
+    /** Vertices still to be settled, keyed by their priority. */
+    final IndexMinHeap open;
+
+    /**
+     * Creates search state for graphs with at most capacity vertices.
+     * @param capacity The number of vertices.
+     */
+    SearchState(int capacity) {
+        dist = new double[capacity];
+        parent = new int[capacity];
+        parentEdge = new int[capacity];
+        stamps = new int[capacity];
+        open = new IndexMinHeap(capacity);
+    }
+
+    int capacity() {
+        return dist.length;
+    }
+
+    /** Forgets the previous search. */
+    void start() {
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            generation = 0;
+        }
+        generation += 1;
+        settled = 0;
+        relaxed = 0;
+        open.clear();
+    }
+
+    /** Counts a settled vertex and the edges about to be relaxed from it. */
+    void countSettled(int edges) {
+        settled += 1;
+        relaxed += edges;
+        checkCancelled(settled);
+    }
+
+    /**
+     * Stops a search whose thread has been interrupted, as a route computation past its
+     * deadline is. The interrupt flag is only read every CANCEL_INTERVAL settled vertices,
+     * so searches too short to be worth stopping never read it at all.
+     * @param settled The vertices the search has settled so far.
+     * @throws CancellationException If the thread has been interrupted.
+     */
+    static void checkCancelled(int settled) {
+        if (settled % CANCEL_INTERVAL == 0 && Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("search interrupted");
+        }
+    }
+
+    int settled() {
+        return settled;
+    }
+
+    long relaxed() {
+        return relaxed;
+    }
+
+    /** Returns the tentative distance to v, or infinity if v has not been reached. */
+    double dist(int v) {
+        return stamps[v] == generation ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Returns the vertex v was reached from, or -1 for the source. */
+    int parent(int v) {
+        return parent[v];
+    }
+
+    /** Returns the half-edge between v and its parent, or -1 for the source. */
+    int parentEdge(int v) {
+        return parentEdge[v];
+    }
+
+    /**
+     * Records a (shorter) path to v and puts v in the open set, reopening it if it had
+     * already been settled.
+     * @param v The vertex reached.
+     * @param d The length of the path to v.
+     * @param from The previous vertex on the path, or -1 if v is the source.
+     * @param edge The half-edge from the previous vertex to v, or -1 if v is the source.
+     * @param priority The priority of v in the open set.
+     */
+    void reach(int v, double d, int from, int edge, double priority) {
+        stamps[v] = generation;
+        dist[v] = d;
+        parent[v] = from;
+        parentEdge[v] = edge;
+        open.push(v, priority);
+    }
+}
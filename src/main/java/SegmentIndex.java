@@ -0,0 +1,355 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A static, packed R-tree over the road segments of a GraphDB, used to snap locations
+ * onto the nearest point of the nearest road instead of the nearest intersection.
+ *
+ * Every undirected segment is stored once, as its half-edge from the lower to the
+ * higher vertex index. The segments are sorted along a Hilbert curve through their
+ * midpoints and grouped NODE_SIZE at a time into leaf nodes; each level above groups
+ * NODE_SIZE consecutive nodes of the level below, up to a single root. Since the curve
+ * keeps neighbors together, consecutive groups have compact bounding boxes, and the
+ * tree needs no pointers: the children of node i are nodes (or segments)
+ * i * NODE_SIZE .. i * NODE_SIZE + NODE_SIZE - 1 of the level below.
+ *
+ * Distances are measured in an equirectangular projection centered on the query point,
+ * which at city scale agrees with great-circle distances to well under a foot. A query
+ * first bounds the answer by the segments around the nearest vertex, so the descent
+ * prunes nearly every node and stays in the microseconds.
+ */
+class SegmentIndex {
+    /** Children per node. */
+    private static final int NODE_SIZE = 16;
+    /** Miles per degree of latitude, matching the earth radius GraphDB.distance uses. */
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+    /** Largest grid coordinate of segment midpoints on the Hilbert curve, 2^15 - 1. */
+    private static final int HILBERT_MAX = (1 << 15) - 1;
+
+    private final GraphDB g;
+    /* The index's columns, package-private so that GraphSnapshot can save and restore them. */
+    /** Canonical half-edge of every segment, in tree order. */
+    final IntBuffer edges;
+    /** The vertex every segment in edges starts at. */
+    final IntBuffer sources;
+    /** Node i of level l is node levelStarts[l] + i in the bounding box columns. */
+    private final int[] levelStarts;
+    final DoubleBuffer minLons;
+    final DoubleBuffer minLats;
+    final DoubleBuffer maxLons;
+    final DoubleBuffer maxLats;
+
+    /**
+     * Builds the index over a frozen graph's segments.
+     * @param g The graph.
+     */
+    SegmentIndex(GraphDB g) {
+        this.g = g;
+        int[] order = hilbertOrder(g);
+        int[] sourceOf = new int[g.targets.limit()];
+        for (int v = 0; v < g.size(); v++) {
+            for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+                sourceOf[e] = v;
+            }
+        }
+        int[] starts = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            starts[i] = sourceOf[order[i]];
+        }
+        edges = IntBuffer.wrap(order);
+        sources = IntBuffer.wrap(starts);
+
+        levelStarts = levelStarts(order.length);
+        int total = levelStarts[levelStarts.length - 1];
+        double[] minLonColumn = new double[total];
+        double[] minLatColumn = new double[total];
+        double[] maxLonColumn = new double[total];
+        double[] maxLatColumn = new double[total];
+        Arrays.fill(minLonColumn, Double.POSITIVE_INFINITY);
+        Arrays.fill(minLatColumn, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxLonColumn, Double.NEGATIVE_INFINITY);
+        Arrays.fill(maxLatColumn, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < order.length; i++) {
+            int node = i / NODE_SIZE;
+            int v = starts[i];
+            int w = g.edgeTarget(order[i]);
+            minLonColumn[node] = Math.min(minLonColumn[node], Math.min(g.lonAt(v), g.lonAt(w)));
+            minLatColumn[node] = Math.min(minLatColumn[node], Math.min(g.latAt(v), g.latAt(w)));
+            maxLonColumn[node] = Math.max(maxLonColumn[node], Math.max(g.lonAt(v), g.lonAt(w)));
+            maxLatColumn[node] = Math.max(maxLatColumn[node], Math.max(g.latAt(v), g.latAt(w)));
+        }
+        for (int l = 1; l < levelStarts.length - 1; l++) {
+            for (int child = levelStarts[l - 1]; child < levelStarts[l]; child++) {
+                int node = levelStarts[l] + (child - levelStarts[l - 1]) / NODE_SIZE;
+                minLonColumn[node] = Math.min(minLonColumn[node], minLonColumn[child]);
+                minLatColumn[node] = Math.min(minLatColumn[node], minLatColumn[child]);
+                maxLonColumn[node] = Math.max(maxLonColumn[node], maxLonColumn[child]);
+                maxLatColumn[node] = Math.max(maxLatColumn[node], maxLatColumn[child]);
+            }
+        }
+        minLons = DoubleBuffer.wrap(minLonColumn);
+        minLats = DoubleBuffer.wrap(minLatColumn);
+        maxLons = DoubleBuffer.wrap(maxLonColumn);
+        maxLats = DoubleBuffer.wrap(maxLatColumn);
+    }
+
+    /**
+     * Restores an index previously built over the same graph, from the columns of the
+     * original index.
+     */
+    SegmentIndex(GraphDB g, IntBuffer edges, IntBuffer sources, DoubleBuffer minLons,
+                 DoubleBuffer minLats, DoubleBuffer maxLons, DoubleBuffer maxLats) {
+        this.g = g;
+        this.edges = edges;
+        this.sources = sources;
+        this.levelStarts = levelStarts(edges.limit());
+        this.minLons = minLons;
+        this.minLats = minLats;
+        this.maxLons = maxLons;
+        this.maxLats = maxLats;
+    }
+
+    /**
+     * Returns where each level of the tree over a number of segments starts in the
+     * bounding box columns, leaves first and root last, followed by the number of nodes.
+     */
+    static int[] levelStarts(int segments) {
+        int levels = 1;
+        for (int count = segments; ; levels++) {
+            count = (count + NODE_SIZE - 1) / NODE_SIZE;
+            if (count <= 1) {
+                break;
+            }
+        }
+        int[] starts = new int[levels + 1];
+        int count = segments;
+        for (int l = 1; l <= levels; l++) {
+            count = (count + NODE_SIZE - 1) / NODE_SIZE;
+            starts[l] = starts[l - 1] + count;
+        }
+        return starts;
+    }
+
+    /** Returns the canonical half-edges of the graph's segments in Hilbert curve order. */
+    private static int[] hilbertOrder(GraphDB g) {
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < g.size(); v++) {
+            minLon = Math.min(minLon, g.lonAt(v));
+            minLat = Math.min(minLat, g.latAt(v));
+            maxLon = Math.max(maxLon, g.lonAt(v));
+            maxLat = Math.max(maxLat, g.latAt(v));
+        }
+        double lonScale = maxLon > minLon ? HILBERT_MAX / (maxLon - minLon) : 0;
+        double latScale = maxLat > minLat ? HILBERT_MAX / (maxLat - minLat) : 0;
+        /* Sort keys hold the curve position in the high word and the half-edge in the low. */
+        long[] keys = new long[g.targets.limit() / 2];
+        int count = 0;
+        for (int v = 0; v < g.size(); v++) {
+            for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+                int w = g.edgeTarget(e);
+                if (v < w) {
+                    int x = (int) (((g.lonAt(v) + g.lonAt(w)) / 2 - minLon) * lonScale);
+                    int y = (int) (((g.latAt(v) + g.latAt(w)) / 2 - minLat) * latScale);
+                    keys[count++] = (long) hilbert(x, y) << 32 | e;
+                }
+            }
+        }
+        keys = Arrays.copyOf(keys, count);
+        Arrays.sort(keys);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /** Returns the position of cell (x, y) along a Hilbert curve through the grid. */
+    private static int hilbert(int x, int y) {
+        int d = 0;
+        for (int s = (HILBERT_MAX + 1) >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return d;
+    }
+
+    /** Returns the number of segments in the index. */
+    int size() {
+        return edges.limit();
+    }
+
+    /**
+     * Returns the point on the road network closest to the given location.
+     * @param lon The query longitude.
+     * @param lat The query latitude.
+     * @return The closest point and the segment it lies on, or null if the graph has no
+     * segments. Ties go to the segment with the smaller half-edge index.
+     */
+    Snap nearest(double lon, double lat) {
+        if (size() == 0) {
+            return null;
+        }
+        Query q = new Query(lon, lat);
+        /* Any segment at the nearest vertex bounds the answer; the slack keeps that bound
+         * from excluding the same segment measured in the other direction. */
+        int v = g.closestIndex(lon, lat);
+        for (int e = g.firstEdge(v); e < g.lastEdge(v); e++) {
+            q.bound = Math.min(q.bound, q.segment(v, g.edgeTarget(e)) * (1 + 1e-9));
+        }
+        int root = levelStarts.length - 2;
+        search(q, root, 0);
+        int from = sources.get(q.best);
+        int to = g.edgeTarget(edges.get(q.best));
+        q.segment(from, to);
+        double fraction = q.fraction;
+        return new Snap(edges.get(q.best), from, to, fraction,
+                g.lonAt(from) + fraction * (g.lonAt(to) - g.lonAt(from)),
+                g.latAt(from) + fraction * (g.latAt(to) - g.latAt(from)),
+                Math.sqrt(q.bestDistance) * MILES_PER_DEGREE);
+    }
+
+    /** Visits node i of a level, descending into every child that might beat the best. */
+    private void search(Query q, int level, int i) {
+        int first = i * NODE_SIZE;
+        if (level == 0) {
+            int last = Math.min(first + NODE_SIZE, size());
+            for (int k = first; k < last; k++) {
+                double d = q.segment(sources.get(k), g.edgeTarget(edges.get(k)));
+                if (d < q.bestDistance
+                        || (d == q.bestDistance && edges.get(k) < edges.get(q.best))) {
+                    q.best = k;
+                    q.bestDistance = d;
+                    q.bound = Math.min(q.bound, d);
+                }
+            }
+            return;
+        }
+        int last = Math.min(first + NODE_SIZE, levelStarts[level] - levelStarts[level - 1]);
+        for (int k = first; k < last; k++) {
+            int child = levelStarts[level - 1] + k;
+            if (q.box(minLons.get(child), minLats.get(child), maxLons.get(child),
+                    maxLats.get(child)) <= q.bound) {
+                search(q, level - 1, k);
+            }
+        }
+    }
+
+    /**
+     * The state of one query. Distances are squared, in degrees of latitude, with
+     * longitudes scaled by the cosine of the query latitude.
+     */
+    private final class Query {
+        final double lon;
+        final double lat;
+        final double cosLat;
+        /** Squared distance no answer can exceed. */
+        double bound = Double.POSITIVE_INFINITY;
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        /** Where along the segment last measured its closest point lies, from 0 to 1. */
+        double fraction;
+
+        Query(double lon, double lat) {
+            this.lon = lon;
+            this.lat = lat;
+            this.cosLat = Math.cos(Math.toRadians(lat));
+        }
+
+        /** Returns the squared distance to the segment from v to w, setting fraction. */
+        double segment(int v, int w) {
+            double ax = (g.lonAt(v) - lon) * cosLat;
+            double ay = g.latAt(v) - lat;
+            double dx = (g.lonAt(w) - lon) * cosLat - ax;
+            double dy = g.latAt(w) - lat - ay;
+            double length = dx * dx + dy * dy;
+            double t = length > 0 ? -(ax * dx + ay * dy) / length : 0;
+            fraction = Math.max(0, Math.min(1, t));
+            double px = ax + fraction * dx;
+            double py = ay + fraction * dy;
+            return px * px + py * py;
+        }
+
+        /** Returns the squared distance to a bounding box. */
+        double box(double minLon, double minLat, double maxLon, double maxLat) {
+            double dx = Math.max(0, Math.max(minLon - lon, lon - maxLon)) * cosLat;
+            double dy = Math.max(0, Math.max(minLat - lat, lat - maxLat));
+            return dx * dx + dy * dy;
+        }
+    }
+
+    /**
+     * A location snapped onto the road network: a point partway along the half-edge from
+     * one vertex to another, or exactly at a vertex.
+     */
+    static final class Snap {
+        /** The half-edge from from to to, or -1 if the point is the vertex from itself. */
+        final int edge;
+        final int from;
+        final int to;
+        /** How far along the segment the point lies, from 0 at from to 1 at to. */
+        final double fraction;
+        final double lon;
+        final double lat;
+        /** Distance in miles from the location snapped to the point. */
+        final double distance;
+
+        Snap(int edge, int from, int to, double fraction, double lon, double lat,
+             double distance) {
+            this.edge = edge;
+            this.from = from;
+            this.to = to;
+            this.fraction = fraction;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+        }
+
+        /** Returns the point at a vertex of a graph, or null if v is -1. */
+        static Snap at(GraphDB g, int v) {
+            return v < 0 ? null : new Snap(-1, v, v, 0, g.lonAt(v), g.latAt(v), 0);
+        }
+
+        /** Returns the weight of the part of the segment between from and the point. */
+        double fromWeight(DoubleBuffer weights) {
+            return edge < 0 ? 0 : fraction * weights.get(edge);
+        }
+
+        /** Returns the weight of the part of the segment between the point and to. */
+        double toWeight(DoubleBuffer weights) {
+            return edge < 0 ? 0 : (1 - fraction) * weights.get(edge);
+        }
+
+        /** Returns whether the point lies partway along a segment rather than at a vertex. */
+        boolean onSegment() {
+            return edge >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Snap)) {
+                return false;
+            }
+            Snap other = (Snap) o;
+            return edge == other.edge && from == other.from && fraction == other.fraction;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * edge + from) + Double.hashCode(fraction);
+        }
+    }
+}
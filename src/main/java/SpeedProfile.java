@@ -0,0 +1,79 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the highway class and maxspeed tag of a way into the speed routing assumes for
+ * it. See OSM documentation on
+ * <a href="http://wiki.openstreetmap.org/wiki/Key:maxspeed">the maxspeed tag</a>.
+ *
+ * A maxspeed is a number, in km/h unless followed by "mph" ("25 mph", "40", "50 km/h");
+ * for lists such as "25;35" the first value counts. Ways without a usable maxspeed, such
+ * as "none", "signals" or a zone code, get the default speed of their highway class.
+ * Speeds are resolved once per way while the graph is built, never during a search.
+ */
+final class SpeedProfile {
+    /** Default speed in mph of each highway class routing allows. */
+    private static final Map<String, Double> DEFAULT_MPH = new HashMap<>();
+    /** Speed in mph assumed for ways of an unknown class. */
+    static final double FALLBACK_MPH = 25;
+    private static final double MPH_PER_KMH = 0.621371;
+
+    static {
+        DEFAULT_MPH.put("motorway", 65.0);
+        DEFAULT_MPH.put("motorway_link", 45.0);
+        DEFAULT_MPH.put("trunk", 55.0);
+        DEFAULT_MPH.put("trunk_link", 40.0);
+        DEFAULT_MPH.put("primary", 40.0);
+        DEFAULT_MPH.put("primary_link", 30.0);
+        DEFAULT_MPH.put("secondary", 35.0);
+        DEFAULT_MPH.put("secondary_link", 30.0);
+        DEFAULT_MPH.put("tertiary", 30.0);
+        DEFAULT_MPH.put("tertiary_link", 25.0);
+        DEFAULT_MPH.put("unclassified", 25.0);
+        DEFAULT_MPH.put("residential", 25.0);
+        DEFAULT_MPH.put("living_street", 10.0);
+    }
+
+    private SpeedProfile() {
+    }
+
+    /**
+     * Returns the speed of a way.
+     * @param highway The way's highway tag, or null.
+     * @param maxSpeed The way's maxspeed tag, or null.
+     * @return The speed in mph; always positive.
+     */
+    static double mph(String highway, String maxSpeed) {
+        double parsed = parseMph(maxSpeed);
+        if (parsed > 0) {
+            return parsed;
+        }
+        Double byClass = highway == null ? null : DEFAULT_MPH.get(highway);
+        return byClass != null ? byClass : FALLBACK_MPH;
+    }
+
+    /** Returns the speed a maxspeed tag gives in mph, or 0 if it gives none. */
+    static double parseMph(String maxSpeed) {
+        if (maxSpeed == null) {
+            return 0;
+        }
+        int semicolon = maxSpeed.indexOf(';');
+        String value = (semicolon >= 0 ? maxSpeed.substring(0, semicolon) : maxSpeed).trim();
+        int end = 0;
+        while (end < value.length()
+                && (Character.isDigit(value.charAt(end)) || value.charAt(end) == '.')) {
+            end += 1;
+        }
+        if (end == 0) {
+            return 0;
+        }
+        double number;
+        try {
+            number = Double.parseDouble(value.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        boolean inMph = value.substring(end).trim().toLowerCase().startsWith("mph");
+        return inMph ? number : number * MPH_PER_KMH;
+    }
+}
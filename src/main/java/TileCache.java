@@ -0,0 +1,235 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * A cache of decoded map tiles, bounded by the bytes their pixels take, so that rastering
+ * draws tiles from memory instead of decoding the same PNG files again and again.
+ *
+ * Tiles are converted to the raster's RGB pixel format as they are decoded, which makes
+ * drawing them a plain copy. When the cache is over its size, the least recently used
+ * tiles are evicted. Tiles of the shallowest depths, which are few and cover the whole
+ * map, are pinned instead: they are never evicted and do not count towards the bound.
+ * Tiles are decoded outside the cache's lock, so a tile missed by two threads at once may
+ * be decoded twice, but a hit never waits for a decode.
+ *
+ * Tiles can also be loaded ahead of use, by a warm-up at startup or by prefetching around
+ * the viewports served; see TilePrefetcher. They share the cache's budget with the tiles
+ * loaded on demand, and the cache counts how many of them a raster went on to draw.
+ */
+public class TileCache {
+    private final String root;
+    private final long capacityBytes;
+    private final int pinnedDepth;
+    private final LinkedHashMap<String, BufferedImage> tiles =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, BufferedImage> pinned = new ConcurrentHashMap<>();
+    /** Bytes taken by the tiles in tiles, guarded by the same lock. */
+    private long bytes;
+    private final AtomicLong pinnedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    /** Tiles loaded by warm-up or prefetching that no raster has drawn yet. */
+    private final Set<String> unusedWarmed = ConcurrentHashMap.newKeySet();
+    private final Set<String> unusedPrefetched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong warmed = new AtomicLong();
+    private final AtomicLong warmedUsed = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong prefetchedUsed = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     * @param root The directory the tile files are in, ending in a separator.
+     * @param capacityBytes The most bytes of pixels the unpinned tiles may take.
+     * @param pinnedDepth The deepest tile depth to pin, or 0 to pin none.
+     */
+    public TileCache(String root, long capacityBytes, int pinnedDepth) {
+        this.root = root;
+        this.capacityBytes = capacityBytes;
+        this.pinnedDepth = pinnedDepth;
+    }
+
+    /**
+     * Returns a decoded tile, decoding and caching it if it is not cached yet.
+     * @param name The tile's file name, as Rasterer.tileName gives it.
+     * @return The tile, or null if it cannot be read.
+     */
+    public BufferedImage get(String name) {
+        BufferedImage tile;
+        if (isPinned(name)) {
+            tile = pinned.get(name);
+        } else {
+            synchronized (tiles) {
+                tile = tiles.get(name);
+            }
+        }
+        if (tile != null) {
+            hits.incrementAndGet();
+            if (unusedWarmed.remove(name)) {
+                warmedUsed.incrementAndGet();
+            } else if (unusedPrefetched.remove(name)) {
+                prefetchedUsed.incrementAndGet();
+            }
+            return tile;
+        }
+        misses.incrementAndGet();
+        tile = decode(root + name);
+        if (tile != null) {
+            store(name, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Loads a tile ahead of its use, unless it is cached already or there is no such tile.
+     * Checking for the tile does not count as using it, so it does not keep a tile cached.
+     * @param name The tile's file name.
+     * @param warmUp Whether the tile is loaded by the warm-up rather than by prefetching,
+     *               which decides what its use counts towards.
+     * @return Whether the tile was loaded.
+     */
+    public boolean prefetch(String name, boolean warmUp) {
+        boolean cached;
+        if (isPinned(name)) {
+            cached = pinned.containsKey(name);
+        } else {
+            synchronized (tiles) {
+                cached = tiles.containsKey(name);
+            }
+        }
+        if (cached || !new File(root + name).isFile()) {
+            return false;
+        }
+        BufferedImage tile = decode(root + name);
+        if (tile == null) {
+            return false;
+        }
+        if (warmUp) {
+            warmed.incrementAndGet();
+            unusedWarmed.add(name);
+        } else {
+            prefetched.incrementAndGet();
+            unusedPrefetched.add(name);
+        }
+        store(name, tile);
+        return true;
+    }
+
+    private boolean isPinned(String name) {
+        return depthOf(name) <= pinnedDepth;
+    }
+
+    /** Caches a decoded tile, evicting the least recently used while over the budget. */
+    private void store(String name, BufferedImage tile) {
+        if (isPinned(name)) {
+            if (pinned.putIfAbsent(name, tile) == null) {
+                pinnedBytes.addAndGet(sizeOf(tile));
+            }
+            return;
+        }
+        synchronized (tiles) {
+            BufferedImage replaced = tiles.put(name, tile);
+            bytes += sizeOf(tile) - (replaced == null ? 0 : sizeOf(replaced));
+            Iterator<Map.Entry<String, BufferedImage>> eldest = tiles.entrySet().iterator();
+            while (bytes > capacityBytes && eldest.hasNext()) {
+                Map.Entry<String, BufferedImage> entry = eldest.next();
+                bytes -= sizeOf(entry.getValue());
+                unusedWarmed.remove(entry.getKey());
+                unusedPrefetched.remove(entry.getKey());
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Returns the number of tiles served from the cache. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Returns the number of tiles that had to be decoded. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Returns the bytes the cached tiles take, pinned tiles included. */
+    public long bytes() {
+        synchronized (tiles) {
+            return bytes + pinnedBytes.get();
+        }
+    }
+
+    /** Returns the number of cached tiles, pinned tiles included. */
+    public int size() {
+        synchronized (tiles) {
+            return tiles.size() + pinned.size();
+        }
+    }
+
+    /** Returns the cache's counters and sizes, keyed for a JSON response. */
+    Map<String, Object> toMap() {
+        long hitCount = hits();
+        long total = hitCount + misses();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("hits", hitCount);
+        map.put("misses", total - hitCount);
+        map.put("hit_rate", total == 0 ? 0 : (double) hitCount / total);
+        map.put("tiles", size());
+        map.put("bytes", bytes());
+        map.put("capacity_bytes", capacityBytes);
+        map.put("warmed", warmed.get());
+        map.put("warmed_used", warmedUsed.get());
+        map.put("prefetched", prefetched.get());
+        map.put("prefetched_used", prefetchedUsed.get());
+        return map;
+    }
+
+    /**
+     * Returns the depth in a tile name of the form d{depth}_x{x}_y{y}.png, or 0 for any
+     * other name, such as the root tile's.
+     */
+    static int depthOf(String name) {
+        int depth = 0;
+        if (name.startsWith("d")) {
+            for (int i = 1; i < name.length() && Character.isDigit(name.charAt(i)); i++) {
+                depth = depth * 10 + name.charAt(i) - '0';
+            }
+        }
+        return depth;
+    }
+
+    /** Returns the bytes an image's pixels take. */
+    static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / Byte.SIZE;
+    }
+
+    /** Reads a tile and converts it to RGB pixels, or returns null if it cannot be read. */
+    private static BufferedImage decode(String path) {
+        BufferedImage read;
+        try {
+            read = ImageIO.read(new File(path));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (read == null || read.getType() == BufferedImage.TYPE_INT_RGB) {
+            return read;
+        }
+        BufferedImage tile = new BufferedImage(read.getWidth(), read.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics graphics = tile.getGraphics();
+        graphics.drawImage(read, 0, 0, null);
+        graphics.dispose();
+        return tile;
+    }
+}
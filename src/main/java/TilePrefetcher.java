@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads tiles into a TileCache before rasters need them: every tile of the shallowest
+ * depths when the server starts, and while it runs, the tiles around each window served,
+ * which a viewport panned in any direction draws next.
+ *
+ * Prefetching runs on one low-priority background thread that only ever keeps the latest
+ * window waiting: a window replaced before its turn is dropped, since the viewport has
+ * moved on. Prefetched tiles share the cache's budget with the tiles rasters load, and
+ * the cache reports how many of them were drawn.
+ */
+public class TilePrefetcher {
+    private final TileCache cache;
+    private final boolean nextDepth;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a prefetcher.
+     * @param cache The cache to load tiles into.
+     * @param nextDepth Whether to also prefetch the tiles of the next depth down under each
+     *                  window, for a viewport that zooms in.
+     */
+    public TilePrefetcher(TileCache cache, boolean nextDepth) {
+        this.cache = cache;
+        this.nextDepth = nextDepth;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1), runnable -> {
+                    Thread thread = new Thread(runnable, "tile-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Loads every tile from depth 0 down to a depth, in parallel, returning once they are
+     * loaded.
+     * @param maxDepth The deepest depth to load, or -1 to load nothing.
+     * @return The number of tiles loaded.
+     */
+    public int warm(int maxDepth) {
+        List<String> names = new ArrayList<>();
+        for (int depth = 0; depth <= Math.min(maxDepth, Rasterer.MAX_DEPTH); depth++) {
+            for (int y = 0; y < 1 << depth; y++) {
+                for (int x = 0; x < 1 << depth; x++) {
+                    names.add(Rasterer.tileName(depth, x, y));
+                }
+            }
+        }
+        return (int) names.parallelStream().filter(name -> cache.prefetch(name, true)).count();
+    }
+
+    /** Starts loading the tiles around a window in the background. */
+    public void prefetch(Rasterer.Window window) {
+        executor.execute(() -> {
+            for (String name : tilesAround(window)) {
+                cache.prefetch(name, false);
+            }
+        });
+    }
+
+    /**
+     * Returns the tiles around a window: the ring of tiles bordering it at its depth and,
+     * if the prefetcher looks ahead to the next depth, the tiles there covering the window.
+     * Positions outside the map are left out.
+     */
+    List<String> tilesAround(Rasterer.Window window) {
+        List<String> names = new ArrayList<>();
+        int tiles = 1 << window.depth;
+        for (int y = window.yMin - 1; y <= window.yMax; y++) {
+            for (int x = window.xMin - 1; x <= window.xMax; x++) {
+                boolean inside = x >= window.xMin && x < window.xMax
+                        && y >= window.yMin && y < window.yMax;
+                if (!inside && x >= 0 && x < tiles && y >= 0 && y < tiles) {
+                    names.add(Rasterer.tileName(window.depth, x, y));
+                }
+            }
+        }
+        if (nextDepth && window.depth < Rasterer.MAX_DEPTH) {
+            int yMax = Math.min(2 * window.yMax, 2 * tiles);
+            int xMax = Math.min(2 * window.xMax, 2 * tiles);
+            for (int y = Math.max(2 * window.yMin, 0); y < yMax; y++) {
+                for (int x = Math.max(2 * window.xMin, 0); x < xMax; x++) {
+                    names.add(Rasterer.tileName(window.depth + 1, x, y));
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -29,6 +29,9 @@ $(function() {
     // psueod-lock
     var getInProgress = false;
     var route_params = {};
+    // decoded [lon, lat] points of the current route, and the depth they were simplified for
+    var route_points = [];
+    var route_depth = -1;
     var map;
     var dest;
     var tx = 0, ty = 0;
@@ -37,6 +40,8 @@ $(function() {
     var host;
     var ullon_bound, ullat_bound, lrlon_bound, lrlat_bound;
     var img_w, img_h;
+    /* Object URL of the raster image shown, released when the next one replaces it */
+    var map_url;
     var constrain, theme;
 
     /* Starting hyper-parameters #machinelearning */
@@ -54,9 +59,8 @@ $(function() {
     } else {
         host = 'http://localhost:4567';
     }
-    const raster_server = host + '/raster';
+    const raster_server = host + '/raster.png';
     const route_server = host + '/route';
-    const clear_route = host + '/clear_route';
     const search = host + '/search';
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
@@ -101,6 +105,43 @@ $(function() {
         }
     }
 
+    /* Decode a route polyline (Google's encoded polyline format) into [lon, lat] points */
+    function decodePolyline(encoded) {
+        const points = [];
+        var index = 0, lat = 0, lon = 0;
+        function next() {
+            var result = 0, shift = 0, chunk;
+            do {
+                chunk = encoded.charCodeAt(index++) - 63;
+                result |= (chunk & 0x1f) << shift;
+                shift += 5;
+            } while (chunk >= 0x20);
+            return (result & 1) ? ~(result >> 1) : (result >> 1);
+        }
+        while (index < encoded.length) {
+            lat += next();
+            lon += next();
+            points.push([lon / 1e5, lat / 1e5]);
+        }
+        return points;
+    }
+
+    /* Draw the route over the current raster; the raster itself never contains it */
+    function drawRoute() {
+        const svg = document.getElementById('route');
+        svg.setAttribute('width', img_w);
+        svg.setAttribute('height', img_h);
+        if (route_points.length === 0) {
+            svg.innerHTML = '';
+            return;
+        }
+        const coords = route_points.map(function(p) {
+            return ((p[0] - ullon_bound) / wdpp).toFixed(1) + ',' +
+                ((ullat_bound - p[1]) / hdpp).toFixed(1);
+        });
+        svg.innerHTML = '<polyline points="' + coords.join(' ') + '"></polyline>';
+    }
+
     function updateImg(successCallback) {
         /* Synchronous ajax call for image update.
            Could be async for better experience but then user spam locks up the server.
@@ -108,53 +149,66 @@ $(function() {
            updates which are called before ajax() is called #sigh #why #justjavascriptthings */
         $loadingStatus.show();
         getInProgress = true;
-        $.get({
-            async: true,
-            url: raster_server,
-            data: params,
-            success: function(data) {
-                console.log(data);
-                if (data.query_success) {
-                    $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params.ullon - ullon_bound) * (1 / wdpp);
-                    ty = (params.ullat - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
-                    getInProgress = false;
-                    if (successCallback) {
-                        successCallback();
-                    }
-                } else {
-                    $loadingstatus.hide();
+        /* The image comes back as the response body and the rest of the result as JSON
+           in the X-Raster header, so the PNG never passes through Base64. */
+        const xhr = new XMLHttpRequest();
+        xhr.open('GET', raster_server + '?' + $.param(params));
+        xhr.responseType = 'blob';
+        xhr.onload = function() {
+            if (xhr.status !== 200 && xhr.status !== 204) {
+                xhr.onerror();
+                return;
+            }
+            const data = JSON.parse(xhr.getResponseHeader('X-Raster'));
+            console.log(data);
+            if (data.query_success) {
+                $loadingStatus.hide();
+                if (map_url) {
+                    URL.revokeObjectURL(map_url);
+                }
+                map_url = URL.createObjectURL(xhr.response);
+                map.src = map_url;
+                console.log('Updating map with image size: ' + xhr.response.size);
+                ullon_bound = data.raster_ul_lon;
+                ullat_bound = data.raster_ul_lat;
+                lrlon_bound = data.raster_lr_lon;
+                lrlat_bound = data.raster_lr_lat;
+                current_level = data.depth;
+                img_w = data.raster_width;
+                img_h = data.raster_height;
+                wdpp = (lrlon_bound - ullon_bound) / img_w;
+                hdpp = (ullat_bound - lrlat_bound) / img_h;
+                // Compute initial transform
+                tx = - (params.ullon - ullon_bound) * (1 / wdpp);
+                ty = (params.ullat - ullat_bound) * (1 / hdpp);
+                rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
+                rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
+                updateMarkers();
+                drawRoute();
+                if (route_params.end_lon && route_depth !== current_level) {
+                    updateRoute();
                 }
-            },
-            error: function() {
                 getInProgress = false;
-                $errorStatus.show();
-                setTimeout(function() {
-                    $errorStatus.fadeOut();
-                }, 4000);
-            },
-            dataType: 'json'
-        });
+                if (successCallback) {
+                    successCallback();
+                }
+            } else {
+                $loadingStatus.hide();
+            }
+        };
+        xhr.onerror = function() {
+            getInProgress = false;
+            $errorStatus.show();
+            setTimeout(function() {
+                $errorStatus.fadeOut();
+            }, 4000);
+        };
+        xhr.send();
     }
 
     function updateT() {
         map.style.transform = 'translateX(' + tx + 'px) translateY(' + ty + 'px)';
+        document.getElementById('route').style.transform = map.style.transform;
         dest.style.transform = 'translateX(' + (tx+rtx) + 'px) translateY(' + (ty+rty) + 'px)';
         for (var i = 0; i < markers.length; i++) {
             const marker = markers[i];
@@ -167,13 +221,15 @@ $(function() {
     }
 
     function updateRoute() {
+        route_depth = current_level;
         $.get({
             async: true,
             url: route_server,
-            data: route_params,
+            data: $.extend({depth: current_level}, route_params),
             success: function(data) {
                 data = JSON.parse(data);
-                updateImg();
+                route_points = data.routing_success ? decodePolyline(data.polyline) : [];
+                drawRoute();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
                 } else {
@@ -404,15 +460,11 @@ $(function() {
     });
 
     $('.clear').click(function() {
-        $.get({
-            async: true,
-            url: clear_route,
-            success: function() {
-                dest.style.visibility = 'hidden';
-                $directionsText.html('No routing directions to display.');
-                update();
-            },
-        });
+        route_params = {};
+        route_points = [];
+        drawRoute();
+        dest.style.visibility = 'hidden';
+        $directionsText.html('No routing directions to display.');
     });
 
     $('.info').click(function() {
@@ -441,6 +493,8 @@ $(function() {
     $('body').dblclick(function handler(event) {
         if (route_params.start_lon && route_params.end_lon) { //finished routing, reset routing
             route_params = {};
+            route_points = [];
+            drawRoute();
         }
         const offset = $body.offset();
         if (route_params.start_lon) { // began routing already but not finished
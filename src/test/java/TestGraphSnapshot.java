@@ -0,0 +1,162 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that GraphSnapshot restores exactly the graph it saved, reading its columns from
+ * the mapped file, and that a stale or foreign snapshot falls back to building from XML.
+ */
+public class TestGraphSnapshot {
+    /** Vertices along each side of the generated street grid. */
+    private static final int SIDE = 6;
+    private File source;
+    private File snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        dir.deleteOnExit();
+        source = new File(dir, "grid.osm.xml");
+        source.deleteOnExit();
+        snapshot = GraphSnapshot.defaultFile(source.getPath());
+        snapshot.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(new FileWriter(source))) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            for (int i = 0; i < SIDE; i++) {
+                for (int j = 0; j < SIDE; j++) {
+                    out.printf("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n", id(i, j),
+                            37.87 + i * 0.001 + j * 0.0001, -122.26 + j * 0.001);
+                }
+            }
+            out.println("<node id=\"1\" lat=\"37.8725\" lon=\"-122.2575\">"
+                    + "<tag k=\"name\" v=\"Cafe Strada\"/></node>");
+            for (int i = 0; i < SIDE; i++) {
+                out.printf("<way id=\"%d\">%n", 10 + i);
+                for (int j = 0; j < SIDE; j++) {
+                    out.printf("<nd ref=\"%d\"/>%n", id(i, j));
+                }
+                out.printf("<tag k=\"highway\" v=\"residential\"/>"
+                        + "<tag k=\"name\" v=\"Row %d\"/></way>%n", i);
+                out.printf("<way id=\"%d\">%n", 20 + i);
+                for (int j = 0; j < SIDE; j++) {
+                    out.printf("<nd ref=\"%d\"/>%n", id(j, i));
+                }
+                out.printf("<tag k=\"highway\" v=\"primary\"/><tag k=\"maxspeed\" v=\"35 mph\"/>"
+                        + "<tag k=\"name\" v=\"Column %d\"/></way>%n", i);
+            }
+            out.println("</osm>");
+        }
+    }
+
+    private static long id(int row, int column) {
+        return 100 + row * SIDE + column;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        GraphDB g = new GraphDB(source.getPath());
+        for (Router.Metric metric : Router.Metric.values()) {
+            g.contractionHierarchy(metric);
+            g.landmarks(metric);
+        }
+        GraphSnapshot.write(g, source, snapshot);
+        GraphDB restored = GraphSnapshot.read(snapshot, source);
+        assertNotNull(restored);
+        assertTrue(restored.lons.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), restored.lons.order());
+        assertEquals(ByteOrder.nativeOrder(), restored.targets.order());
+
+        assertEquals(SIDE * SIDE, restored.size());
+        assertEquals(g.ids, restored.ids);
+        assertEquals(g.lons, restored.lons);
+        assertEquals(g.lats, restored.lats);
+        assertEquals(g.offsets, restored.offsets);
+        assertEquals(g.targets, restored.targets);
+        assertEquals(g.edgeWays, restored.edgeWays);
+        assertEquals(g.edgeLengths, restored.edgeLengths);
+        assertEquals(g.edgeTimes, restored.edgeTimes);
+        assertEquals(g.components, restored.components);
+        assertArrayEquals(g.wayNames, restored.wayNames);
+        assertEquals(g.spatialIndex.order(), restored.spatialIndex.order());
+        assertEquals(g.segmentIndex.edges, restored.segmentIndex.edges);
+        assertEquals(g.segmentIndex.sources, restored.segmentIndex.sources);
+        assertEquals(g.segmentIndex.minLons, restored.segmentIndex.minLons);
+        assertEquals(g.segmentIndex.maxLats, restored.segmentIndex.maxLats);
+        assertEquals(g.heuristic(0, SIDE * SIDE - 1, Router.Metric.FASTEST),
+                restored.heuristic(0, SIDE * SIDE - 1, Router.Metric.FASTEST), 0);
+
+        for (Router.Metric metric : Router.Metric.values()) {
+            ContractionHierarchy ch = g.hierarchies[metric.ordinal()];
+            ContractionHierarchy restoredCh = restored.hierarchies[metric.ordinal()];
+            assertEquals(ch.ranks, restoredCh.ranks);
+            assertEquals(ch.upOffsets, restoredCh.upOffsets);
+            assertEquals(ch.upTargets, restoredCh.upTargets);
+            assertEquals(ch.upWeights, restoredCh.upWeights);
+            assertEquals(ch.upMiddles, restoredCh.upMiddles);
+            Landmarks lm = g.landmarks[metric.ordinal()];
+            Landmarks restoredLm = restored.landmarks[metric.ordinal()];
+            assertArrayEquals(lm.vertices, restoredLm.vertices);
+            assertArrayEquals(lm.distances, restoredLm.distances);
+        }
+
+        assertEquals(1, restored.locations.size());
+        assertEquals("Cafe Strada", restored.locations.get(0).name);
+        assertEquals(1, restored.getLocations("cafe strada").size());
+        assertEquals(Router.shortestPath(g, -122.26, 37.87, -122.255, 37.875),
+                Router.shortestPath(restored, -122.26, 37.87, -122.255, 37.875));
+    }
+
+    @Test
+    public void testChangedSourceRebuilt() {
+        GraphSnapshot.load(source.getPath());
+        assertNotNull(GraphSnapshot.read(snapshot, source));
+        assertTrue(source.setLastModified(source.lastModified() + 10000));
+        assertNull(GraphSnapshot.read(snapshot, source));
+
+        GraphDB g = GraphSnapshot.load(source.getPath());
+        assertEquals(SIDE * SIDE, g.size());
+        assertNotNull(GraphSnapshot.read(snapshot, source));
+    }
+
+    @Test
+    public void testOtherVersionRebuilt() throws IOException {
+        GraphSnapshot.load(source.getPath());
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(Long.BYTES);
+            file.writeInt(GraphSnapshot.VERSION - 1);
+        }
+        assertNull(GraphSnapshot.read(snapshot, source));
+
+        GraphDB g = GraphSnapshot.load(source.getPath());
+        assertEquals(SIDE * SIDE, g.size());
+        assertNotNull(GraphSnapshot.read(snapshot, source));
+    }
+
+    @Test
+    public void testOtherByteOrderRebuilt() throws IOException {
+        GraphSnapshot.load(source.getPath());
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(Long.BYTES + Integer.BYTES);
+            file.writeInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+        }
+        assertNull(GraphSnapshot.read(snapshot, source));
+
+        GraphDB g = GraphSnapshot.load(source.getPath());
+        assertEquals(SIDE * SIDE, g.size());
+        assertNotNull(GraphSnapshot.read(snapshot, source));
+    }
+}
@@ -0,0 +1,32 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the counts, bounds and percentiles Histogram reports.
+ */
+public class TestHistogram {
+    @Test
+    public void testEmpty() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.percentile(0.5));
+        assertEquals(0L, h.summary().get("max"));
+    }
+
+    @Test
+    public void testPercentilesAreBucketBounds() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        h.record(-5);
+        assertEquals(101, h.count());
+        /* The 51st smallest value is 50, in the bucket [32, 63]. */
+        assertEquals(63, h.percentile(0.5));
+        /* The top bucket [64, 127] is capped at the largest value recorded. */
+        assertEquals(100, h.percentile(0.99));
+        assertEquals(0, h.percentile(0));
+        assertEquals(5050.0 / 101, (double) h.summary().get("mean"), 1e-9);
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks Isochrones against routes: a vertex is reachable within a budget exactly when
+ * its shortest route from the origin is no longer than the budget.
+ */
+public class TestIsochrones {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_QUERIES = 5;
+    private static final int NUM_ROUTES = 100;
+    /** Settled vertices the caches under test may hold, enough for every search here. */
+    private static final long CAPACITY = 1 << 20;
+    private static final double ORIGIN_LON = -122.2588;
+    private static final double ORIGIN_LAT = 37.8719;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testReachableMatchesRoutes() {
+        Isochrones isochrones = new Isochrones(graph, CAPACITY);
+        double budget = 0.3;
+        Set<Long> reachable = new HashSet<>(
+                isochrones.reachable(ORIGIN_LON, ORIGIN_LAT, budget).vertices);
+        assertTrue(reachable.contains(graph.closest(ORIGIN_LON, ORIGIN_LAT)));
+
+        Random random = new Random(12);
+        long origin = graph.closest(ORIGIN_LON, ORIGIN_LAT);
+        for (int i = 0; i < NUM_ROUTES; i++) {
+            double lon = ORIGIN_LON + (random.nextDouble() - 0.5) * 0.02;
+            double lat = ORIGIN_LAT + (random.nextDouble() - 0.5) * 0.02;
+            List<Long> route = Router.shortestPath(graph, graph.lon(origin), graph.lat(origin),
+                    lon, lat);
+            double length = 0;
+            for (int k = 1; k < route.size(); k++) {
+                length += graph.distance(route.get(k - 1), route.get(k));
+            }
+            long destination = graph.closest(lon, lat);
+            if (Math.abs(length - budget) > 1e-9) {
+                assertEquals(length <= budget, reachable.contains(destination));
+            }
+        }
+    }
+
+    @Test
+    public void testBudgetsInOneBucket() {
+        Isochrones isochrones = new Isochrones(graph, CAPACITY);
+        for (int i = 1; i <= NUM_QUERIES; i++) {
+            double budget = Isochrones.BUDGET_BUCKET * (1 + i / (NUM_QUERIES + 1.0));
+            List<Long> cached = isochrones.reachable(ORIGIN_LON, ORIGIN_LAT, budget).vertices;
+            List<Long> fresh = new Isochrones(graph, 0)
+                    .reachable(ORIGIN_LON, ORIGIN_LAT, budget).vertices;
+            assertEquals(new HashSet<>(fresh), new HashSet<>(cached));
+        }
+    }
+
+    @Test
+    public void testBoundaryEnclosesVertices() {
+        Isochrones.Reachable reachable = new Isochrones(graph, 0)
+                .reachable(ORIGIN_LON, ORIGIN_LAT, 0.5);
+        List<double[]> ring = reachable.boundary;
+        assertTrue(ring.size() >= 4);
+        assertEquals(ring.get(0)[0], ring.get(ring.size() - 1)[0], 0);
+        assertEquals(ring.get(0)[1], ring.get(ring.size() - 1)[1], 0);
+        for (long v : reachable.vertices) {
+            for (int i = 1; i < ring.size(); i++) {
+                double[] a = ring.get(i - 1);
+                double[] b = ring.get(i);
+                double cross = (b[0] - a[0]) * (graph.lat(v) - a[1])
+                        - (b[1] - a[1]) * (graph.lon(v) - a[0]);
+                assertTrue(cross >= -1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testCacheBoundedByVertices() {
+        double budget = 2 * Isochrones.BUDGET_BUCKET;
+        long size = new Isochrones(graph, 0).reachable(ORIGIN_LON, ORIGIN_LAT, budget)
+                .vertices.size();
+        Isochrones isochrones = new Isochrones(graph, 2 * size);
+        isochrones.reachable(ORIGIN_LON, ORIGIN_LAT, budget);
+        assertEquals(size, isochrones.stored());
+        Random random = new Random(3);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = ORIGIN_LON + (random.nextDouble() - 0.5) * 0.02;
+            double lat = ORIGIN_LAT + (random.nextDouble() - 0.5) * 0.02;
+            isochrones.reachable(lon, lat, budget);
+            assertTrue(isochrones.stored() <= 2 * size);
+        }
+
+        Isochrones small = new Isochrones(graph, size);
+        small.reachable(ORIGIN_LON, ORIGIN_LAT, 100 * budget);
+        assertEquals(0, small.stored());
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the k-d tree used by GraphDB.closest against a brute force scan over
+ * randomly placed points around Berkeley.
+ */
+public class TestKdTree {
+    private static final int NUM_POINTS = 5000;
+    private static final int NUM_QUERIES = 500;
+    private double[] lons;
+    private double[] lats;
+    private KdTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(61);
+        lons = new double[NUM_POINTS];
+        lats = new double[NUM_POINTS];
+        for (int i = 0; i < NUM_POINTS; i++) {
+            lons[i] = MapServer.ROOT_ULLON
+                    + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+            lats[i] = MapServer.ROOT_LRLAT
+                    + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+        }
+        tree = new KdTree(lons, lats);
+    }
+
+    @Test
+    public void testNearest() {
+        Random random = new Random(62);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = -122.31 + random.nextDouble() * 0.11;
+            double lat = 37.81 + random.nextDouble() * 0.09;
+            assertEquals(byDistance(lon, lat)[0], tree.nearest(lon, lat));
+        }
+    }
+
+    @Test
+    public void testKNearest() {
+        Random random = new Random(63);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = -122.31 + random.nextDouble() * 0.11;
+            double lat = 37.81 + random.nextDouble() * 0.09;
+            int[] expected = Arrays.copyOf(byDistance(lon, lat), 10);
+            assertArrayEquals(expected, tree.nearest(lon, lat, 10));
+        }
+    }
+
+    @Test
+    public void testWithin() {
+        Random random = new Random(64);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = -122.31 + random.nextDouble() * 0.11;
+            double lat = 37.81 + random.nextDouble() * 0.09;
+            double radius = random.nextDouble() * 0.5;
+            int[] sorted = byDistance(lon, lat);
+            int count = 0;
+            while (count < sorted.length
+                    && GraphDB.distance(lon, lat, lons[sorted[count]], lats[sorted[count]])
+                    <= radius) {
+                count += 1;
+            }
+            assertArrayEquals(Arrays.copyOf(sorted, count), tree.within(lon, lat, radius));
+        }
+    }
+
+    /** Returns every point index, ordered by distance to the query and then by index. */
+    private int[] byDistance(double lon, double lat) {
+        Integer[] order = new Integer[NUM_POINTS];
+        double[] distances = new double[NUM_POINTS];
+        for (int i = 0; i < NUM_POINTS; i++) {
+            order[i] = i;
+            distances[i] = GraphDB.distance(lon, lat, lons[i], lats[i]);
+        }
+        Arrays.sort(order, (a, b) -> distances[a] != distances[b]
+                ? Double.compare(distances[a], distances[b]) : a - b);
+        int[] result = new int[NUM_POINTS];
+        for (int i = 0; i < NUM_POINTS; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+}
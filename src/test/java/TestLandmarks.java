@@ -0,0 +1,77 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks landmark selection on a street grid with a detached two-vertex island whose
+ * nodes have the smallest ids, so that the island comes first in vertex order.
+ */
+public class TestLandmarks {
+    /** Vertices along each side of the generated street grid. */
+    private static final int SIDE = 5;
+    private GraphDB graph;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("landmarks").toFile();
+        dir.deleteOnExit();
+        File source = new File(dir, "island.osm.xml");
+        source.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(new FileWriter(source))) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            out.println("<node id=\"1\" lat=\"37.8600\" lon=\"-122.2700\"/>");
+            out.println("<node id=\"2\" lat=\"37.8600\" lon=\"-122.2690\"/>");
+            for (int i = 0; i < SIDE; i++) {
+                for (int j = 0; j < SIDE; j++) {
+                    out.printf("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n", id(i, j),
+                            37.87 + i * 0.001, -122.26 + j * 0.001);
+                }
+            }
+            out.println("<way id=\"1\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way>");
+            for (int i = 0; i < SIDE; i++) {
+                out.printf("<way id=\"%d\">%n", 10 + i);
+                for (int j = 0; j < SIDE; j++) {
+                    out.printf("<nd ref=\"%d\"/>%n", id(i, j));
+                }
+                out.println("<tag k=\"highway\" v=\"residential\"/></way>");
+                out.printf("<way id=\"%d\">%n", 20 + i);
+                for (int j = 0; j < SIDE; j++) {
+                    out.printf("<nd ref=\"%d\"/>%n", id(j, i));
+                }
+                out.println("<tag k=\"highway\" v=\"residential\"/></way>");
+            }
+            out.println("</osm>");
+        }
+        graph = new GraphDB(source.getPath());
+    }
+
+    private static long id(int row, int column) {
+        return 100 + row * SIDE + column;
+    }
+
+    @Test
+    public void testLandmarksInLargestComponent() {
+        int island = graph.closestIndex(-122.2700, 37.8600);
+        int grid = graph.closestIndex(-122.26, 37.87);
+        assertEquals(0, island);
+        assertFalse(graph.connected(island, grid));
+
+        Landmarks lm = Landmarks.build(graph, 4, graph.edgeWeights(Router.Metric.SHORTEST));
+        assertEquals(4, lm.vertices.length);
+        for (int v : lm.vertices) {
+            assertEquals(graph.componentOf(grid), graph.componentOf(v));
+        }
+        int corner = graph.closestIndex(-122.26 + (SIDE - 1) * 0.001, 37.87 + (SIDE - 1) * 0.001);
+        assertTrue(lm.lowerBound(grid, corner) > 0);
+    }
+}
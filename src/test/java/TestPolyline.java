@@ -0,0 +1,38 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the encoded polyline format against its published example, and that
+ * simplification keeps the endpoints and drops only vertices that cannot be seen.
+ */
+public class TestPolyline {
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void testEncodeExample() {
+        double[] lons = {-120.2, -120.95, -126.453};
+        double[] lats = {38.5, 40.7, 43.252};
+        String encoded = Polyline.encode(lons, lats, null);
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@", encoded);
+        double[][] decoded = Polyline.decode(encoded);
+        assertArrayEquals(lons, decoded[0], EPSILON);
+        assertArrayEquals(lats, decoded[1], EPSILON);
+    }
+
+    @Test
+    public void testSimplify() {
+        double[] lons = {0, 1, 2, 3, 4, 5};
+        double[] lats = {0, 0.1, 0, 0.1, 3, 0};
+        boolean[] keep = Polyline.simplify(lons, lats, 0.5, 0.5);
+        assertArrayEquals(new boolean[] {true, false, false, true, true, true}, keep);
+
+        keep = Polyline.simplify(lons, lats, 0.01, 0.01);
+        for (boolean k : keep) {
+            assertTrue(k);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that RasterCache finds rasters by their window of tiles and stays within its byte
+ * bound by evicting the least recently used rasters.
+ */
+public class TestRasterCache {
+    private static Rasterer.Window window(int depth, int x0, int y0, int x1, int y1) {
+        return new Rasterer.Window(depth, x0, x1 + 1, y0, y1 + 1, x0, y0, x1 + 1, y1 + 1);
+    }
+
+    private static RasterCache.Raster raster(int bytes) {
+        return new RasterCache.Raster(new byte[bytes], 256, 256);
+    }
+
+    @Test
+    public void testSameWindowHits() {
+        RasterCache cache = new RasterCache(1000);
+        RasterCache.Raster raster = raster(100);
+        assertNull(cache.get(window(3, 1, 2, 4, 5)));
+        cache.put(window(3, 1, 2, 4, 5), raster);
+        assertSame(raster, cache.get(window(3, 1, 2, 4, 5)));
+        assertNull(cache.get(window(3, 1, 2, 4, 6)));
+        assertNull(cache.get(window(4, 1, 2, 4, 5)));
+        assertEquals(100, cache.bytes());
+        assertEquals(1L, cache.toMap().get("hits"));
+        assertEquals(3L, cache.toMap().get("misses"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        RasterCache cache = new RasterCache(250);
+        cache.put(window(2, 0, 0, 1, 1), raster(100));
+        cache.put(window(2, 1, 1, 2, 2), raster(100));
+        cache.get(window(2, 0, 0, 1, 1));
+        cache.put(window(2, 2, 2, 3, 3), raster(100));
+        assertEquals(2, cache.size());
+        assertEquals(200, cache.bytes());
+        assertNull(cache.get(window(2, 1, 1, 2, 2)));
+
+        cache.put(window(1, 0, 0, 1, 1), raster(300));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+    }
+}
@@ -13,6 +13,7 @@ import java.util.Map;
 import java.util.Collections;
 import java.util.StringJoiner;
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -48,6 +49,20 @@ public class TestRasterer {
         }
     }
 
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<Map<String, Object>> expectedResults = resultsFromFile();
+
+        /* One rasterer answers many queries at once, as it does for the server. */
+        IntStream.range(0, NUM_TESTS * 1000).parallel().forEach(j -> {
+            int i = j % NUM_TESTS;
+            Map<String, Object> actual = rasterer.getMapRaster(testParams.get(i));
+            checkParamsMap("Concurrent results did not match the expected results.\n",
+                    expectedResults.get(i), actual);
+        });
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
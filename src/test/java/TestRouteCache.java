@@ -0,0 +1,234 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that RouteCache answers repeated queries from the cache with the same routes
+ * Router computes between the snapped endpoints, that it stays within its capacity, and
+ * that identical queries in flight share one computation that is abandoned on timeout.
+ */
+public class TestRouteCache {
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final int NUM_TESTS = 8;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+    private double[][] queries;
+
+    @Before
+    public void setUp() throws Exception {
+        if (!initialized) {
+            graph = new GraphDB(OSM_DB_PATH);
+            initialized = true;
+        }
+        List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
+        queries = new double[NUM_TESTS][4];
+        int lineIdx = 2; // ignore comment lines
+        for (int i = 0; i < NUM_TESTS; i++) {
+            for (int j = 0; j < 4; j++) {
+                queries[i][j] = Double.parseDouble(lines.get(lineIdx++));
+            }
+        }
+    }
+
+    @Test
+    public void testRepeatedQueriesHit() {
+        RouteCache cache = new RouteCache(graph, NUM_TESTS);
+        for (int round = 0; round < 2; round++) {
+            for (double[] q : queries) {
+                RouteCache.Route route = cache.route(q[0], q[1], q[2], q[3],
+                        Router.Algorithm.A_STAR);
+                Router.Path expected = Router.findPath(graph, graph.snap(q[0], q[1]),
+                        graph.snap(q[2], q[3]), Router.Algorithm.A_STAR,
+                        Router.Metric.SHORTEST, null);
+                assertEquals(expected.ids(graph), route.path);
+                assertEquals(Router.routeDirections(graph, expected), route.directions);
+            }
+        }
+        assertEquals(NUM_TESTS, cache.misses());
+        assertEquals(NUM_TESTS, cache.hits());
+    }
+
+    @Test
+    public void testPointsOnSameSegmentsShareEntry() {
+        RouteCache cache = new RouteCache(graph, NUM_TESTS);
+        for (double[] q : queries) {
+            SegmentIndex.Snap start = graph.snap(q[0], q[1]);
+            SegmentIndex.Snap end = graph.snap(q[2], q[3]);
+            for (double fraction : new double[] {0.25, 0.75}) {
+                double lon = graph.lonAt(start.from)
+                        + fraction * (graph.lonAt(start.to) - graph.lonAt(start.from));
+                double lat = graph.latAt(start.from)
+                        + fraction * (graph.latAt(start.to) - graph.latAt(start.from));
+                RouteCache.Route route = cache.route(lon, lat, end.lon, end.lat,
+                        Router.Algorithm.A_STAR);
+                Router.Path expected = Router.findPath(graph, graph.snap(lon, lat), end,
+                        Router.Algorithm.A_STAR, Router.Metric.SHORTEST, null);
+                assertEquals(expected.ids(graph), route.path);
+                assertEquals(Router.routeDirections(graph, expected), route.directions);
+            }
+        }
+        assertEquals(NUM_TESTS, cache.misses());
+        assertEquals(NUM_TESTS, cache.hits());
+    }
+
+    @Test
+    public void testQueryStats() {
+        RouteCache cache = new RouteCache(graph, NUM_TESTS);
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            cache.clear();
+            double[] q = queries[0];
+            QueryStats first = new QueryStats();
+            cache.route(q[0], q[1], q[2], q[3], algorithm, Router.Metric.SHORTEST, first);
+            assertFalse(first.cached);
+            assertTrue(first.settled > 0);
+            assertTrue(first.pops >= first.settled);
+            assertTrue(first.pushes >= first.pops);
+            assertTrue(first.relaxed > 0);
+            assertTrue(first.searchNanos > 0);
+
+            QueryStats repeated = new QueryStats();
+            cache.route(q[0], q[1], q[2], q[3], algorithm, Router.Metric.SHORTEST, repeated);
+            assertTrue(repeated.cached);
+            assertEquals(0, repeated.settled);
+            assertEquals(0, repeated.searchNanos);
+        }
+    }
+
+    @Test
+    public void testMissSearchesLikeOneQuery() {
+        RouteCache cache = new RouteCache(graph, NUM_TESTS);
+        for (double[] q : queries) {
+            QueryStats miss = new QueryStats();
+            cache.route(q[0], q[1], q[2], q[3], Router.Algorithm.A_STAR,
+                    Router.Metric.SHORTEST, miss);
+            assertFalse(miss.cached);
+            QueryStats single = new QueryStats();
+            Router.findPath(graph, graph.snap(q[0], q[1]), graph.snap(q[2], q[3]),
+                    Router.Algorithm.A_STAR, Router.Metric.SHORTEST, single);
+            /* One search from each end of the start segment, each running on until the
+             * farther end of the destination segment is settled too. */
+            assertTrue(miss.settled + " settled, " + single.settled + " by one query",
+                    miss.settled <= 3 * single.settled + 4);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        RouteCache cache = new RouteCache(graph, 2);
+        double[] a = queries[0];
+        double[] b = queries[1];
+        double[] c = queries[2];
+        cache.route(a[0], a[1], a[2], a[3], Router.Algorithm.A_STAR);
+        cache.route(b[0], b[1], b[2], b[3], Router.Algorithm.A_STAR);
+        cache.route(a[0], a[1], a[2], a[3], Router.Algorithm.A_STAR);
+        cache.route(c[0], c[1], c[2], c[3], Router.Algorithm.A_STAR);
+        assertTrue(cache.size() <= 2);
+        cache.route(a[0], a[1], a[2], a[3], Router.Algorithm.A_STAR);
+        assertEquals(2, cache.hits());
+        cache.route(b[0], b[1], b[2], b[3], Router.Algorithm.A_STAR);
+        assertEquals(4, cache.misses());
+    }
+
+    @Test
+    public void testIdenticalQueriesCoalesce() throws Exception {
+        /* Computations wait here until the test runs them, so both queries are in flight. */
+        List<Runnable> held = new ArrayList<>();
+        RouteCache cache = new RouteCache(graph, NUM_TESTS, runnable -> {
+            synchronized (held) {
+                held.add(runnable);
+            }
+        });
+        double[] q = queries[0];
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            Future<RouteCache.Route> first = clients.submit(() ->
+                    cache.route(q[0], q[1], q[2], q[3], Router.Algorithm.A_STAR));
+            while (cache.misses() == 0) {
+                Thread.sleep(1);
+            }
+            Future<RouteCache.Route> second = clients.submit(() ->
+                    cache.route(q[0], q[1], q[2], q[3], Router.Algorithm.A_STAR));
+            while (cache.coalesced() == 0) {
+                Thread.sleep(1);
+            }
+            synchronized (held) {
+                assertEquals(1, held.size());
+                held.get(0).run();
+            }
+            assertSame(first.get(), second.get());
+            assertEquals(1, cache.misses());
+            assertEquals(0, cache.hits());
+            assertEquals(1, cache.size());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimedOutQueryAbandonsComputation() throws Exception {
+        /* The first computation is held back; later ones run on the querying thread. */
+        List<Runnable> held = new ArrayList<>();
+        RouteCache cache = new RouteCache(graph, NUM_TESTS, runnable -> {
+            if (held.isEmpty()) {
+                held.add(runnable);
+            } else {
+                runnable.run();
+            }
+        });
+        double[] q = queries[0];
+        try {
+            cache.route(q[0], q[1], q[2], q[3], Router.Algorithm.A_STAR,
+                    Router.Metric.SHORTEST, null, 1000000);
+            fail("route should time out while its computation is held");
+        } catch (TimeoutException e) {
+            /* Expected. */
+        }
+        /* No query waits for it any more, so the computation does nothing when run. */
+        held.get(0).run();
+        assertEquals(0, cache.size());
+        RouteCache.Route route = cache.route(q[0], q[1], q[2], q[3], Router.Algorithm.A_STAR,
+                Router.Metric.SHORTEST, null, 1000000000L * 60);
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.coalesced());
+        assertEquals(1, cache.size());
+        assertFalse(route.path.isEmpty());
+    }
+
+    @Test
+    public void testInterruptedSearchStops() {
+        double[] q = queries[0];
+        SegmentIndex.Snap start = graph.snap(q[0], q[1]);
+        SegmentIndex.Snap end = graph.snap(q[2], q[3]);
+        QueryStats stats = new QueryStats();
+        Router.findPath(graph, start, end, Router.Algorithm.A_STAR, Router.Metric.SHORTEST,
+                stats);
+        Thread.currentThread().interrupt();
+        try {
+            Router.findPath(graph, start, end, Router.Algorithm.A_STAR,
+                    Router.Metric.SHORTEST, null);
+            /* Searches only look at the interrupt flag every so often; short ones finish. */
+            assertTrue(stats.settled < 1024);
+        } catch (CancellationException e) {
+            assertTrue(stats.settled >= 1024);
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
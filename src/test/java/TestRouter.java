@@ -8,8 +8,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestRouter {
     private static final String PARAMS_FILE = "path_params.txt";
@@ -44,6 +50,221 @@ public class TestRouter {
         }
     }
 
+    @Test
+    public void testContractionHierarchyShortestPath() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<List<Long>> expectedResults = resultsFromFile();
+
+        for (int i = 0; i < NUM_TESTS; i++) {
+            Map<String, Double> params = testParams.get(i);
+            List<Long> actual = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"),
+                    Router.Algorithm.CONTRACTION_HIERARCHY);
+            List<Long> expected = expectedResults.get(i);
+            assertEquals("Contraction hierarchy results did not match the expected results",
+                    expected, actual);
+        }
+    }
+
+    @Test
+    public void testAltShortestPath() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<List<Long>> expectedResults = resultsFromFile();
+
+        for (int i = 0; i < NUM_TESTS; i++) {
+            Map<String, Double> params = testParams.get(i);
+            List<Long> actual = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"),
+                    Router.Algorithm.ALT);
+            List<Long> expected = expectedResults.get(i);
+            assertEquals("ALT results did not match the expected results", expected, actual);
+        }
+    }
+
+    @Test
+    public void testBidirectionalShortestPath() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<List<Long>> expectedResults = resultsFromFile();
+
+        for (int i = 0; i < NUM_TESTS; i++) {
+            Map<String, Double> params = testParams.get(i);
+            List<Long> actual = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"),
+                    Router.Algorithm.BIDIRECTIONAL_A_STAR);
+            List<Long> expected = expectedResults.get(i);
+            assertEquals("Bidirectional A* results did not match the expected results",
+                    expected, actual);
+        }
+    }
+
+    @Test
+    public void testDistanceMatrix() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        double[] startLons = new double[NUM_TESTS];
+        double[] startLats = new double[NUM_TESTS];
+        double[] endLons = new double[NUM_TESTS];
+        double[] endLats = new double[NUM_TESTS];
+        for (int i = 0; i < NUM_TESTS; i++) {
+            startLons[i] = testParams.get(i).get("start_lon");
+            startLats[i] = testParams.get(i).get("start_lat");
+            endLons[i] = testParams.get(i).get("end_lon");
+            endLats[i] = testParams.get(i).get("end_lat");
+        }
+
+        double[] dijkstra = Router.distanceMatrix(graph, startLons, startLats, endLons, endLats);
+        graph.contractionHierarchy(Router.Metric.SHORTEST);
+        double[] buckets = Router.distanceMatrix(graph, startLons, startLats, endLons, endLats);
+        for (int i = 0; i < NUM_TESTS; i++) {
+            for (int j = 0; j < NUM_TESTS; j++) {
+                List<Long> path = Router.shortestPath(graph, startLons[i], startLats[i],
+                        endLons[j], endLats[j]);
+                double length = 0;
+                for (int k = 1; k < path.size(); k++) {
+                    length += graph.distance(path.get(k - 1), path.get(k));
+                }
+                assertEquals(length, dijkstra[i * NUM_TESTS + j], 1e-9);
+                assertEquals(length, buckets[i * NUM_TESTS + j], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testFindPaths() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        int n = NUM_TESTS * NUM_TESTS;
+        double[] startLons = new double[n];
+        double[] startLats = new double[n];
+        double[] endLons = new double[n];
+        double[] endLats = new double[n];
+        for (int i = 0; i < n; i++) {
+            startLons[i] = testParams.get(i / NUM_TESTS).get("start_lon");
+            startLats[i] = testParams.get(i / NUM_TESTS).get("start_lat");
+            endLons[i] = testParams.get(i % NUM_TESTS).get("end_lon");
+            endLats[i] = testParams.get(i % NUM_TESTS).get("end_lat");
+        }
+
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            Router.Path[] paths = Router.findPaths(graph, startLons, startLats, endLons,
+                    endLats, algorithm, Router.Metric.SHORTEST);
+            for (int i = 0; i < n; i++) {
+                Router.Path expected = Router.findPath(graph,
+                        graph.snap(startLons[i], startLats[i]),
+                        graph.snap(endLons[i], endLats[i]), algorithm,
+                        Router.Metric.SHORTEST, null);
+                assertEquals(expected.ids(graph), paths[i].ids(graph));
+            }
+        }
+    }
+
+    @Test
+    public void testFindPathsStops() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        double[] startLons = new double[NUM_TESTS];
+        double[] startLats = new double[NUM_TESTS];
+        double[] endLons = new double[NUM_TESTS];
+        double[] endLats = new double[NUM_TESTS];
+        for (int i = 0; i < NUM_TESTS; i++) {
+            startLons[i] = testParams.get(i).get("start_lon");
+            startLats[i] = testParams.get(i).get("start_lat");
+            endLons[i] = testParams.get(i).get("end_lon");
+            endLats[i] = testParams.get(i).get("end_lat");
+        }
+        AtomicInteger found = new AtomicInteger();
+        try {
+            Router.findPaths(graph, startLons, startLats, endLons, endLats,
+                    Router.Algorithm.A_STAR, Router.Metric.SHORTEST, System.nanoTime() - 1,
+                    (path, i) -> found.incrementAndGet());
+            fail("a batch past its deadline should stop");
+        } catch (CancellationException e) {
+            assertEquals(0, found.get());
+        }
+        /* Queries run one at a time, so none starts after the first one fails. */
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            single.submit(() -> Router.findPaths(graph, startLons, startLats, endLons,
+                    endLats, Router.Algorithm.A_STAR, Router.Metric.SHORTEST, -1,
+                    (path, i) -> {
+                        found.incrementAndGet();
+                        throw new IllegalStateException("client gone");
+                    })).get();
+            fail("a batch whose results cannot be delivered should stop");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals(1, found.get());
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void testComponents() {
+        int other = -1;
+        for (int v = 0; v < graph.size(); v++) {
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                assertTrue(graph.connected(v, graph.edgeTarget(e)));
+            }
+            if (other < 0 && !graph.connected(0, v)) {
+                other = v;
+            }
+        }
+        /* Routing between components finds nothing, without settling a single vertex. */
+        if (other >= 0) {
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                QueryStats stats = new QueryStats();
+                Router.Path path = Router.findPath(graph, 0, other, algorithm,
+                        Router.Metric.SHORTEST, stats);
+                assertTrue(path.isEmpty());
+                assertEquals(0, stats.settled);
+            }
+        }
+    }
+
+    @Test
+    public void testFastestPath() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        for (int i = 0; i < NUM_TESTS; i++) {
+            Map<String, Double> params = testParams.get(i);
+            List<Long> shortest = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"),
+                    Router.Algorithm.A_STAR, Router.Metric.SHORTEST);
+            List<Long> fastest = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"),
+                    Router.Algorithm.A_STAR, Router.Metric.FASTEST);
+            double time = travelTime(fastest);
+            assertTrue(time <= travelTime(shortest) + 1e-9);
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                List<Long> path = Router.shortestPath(graph,
+                        params.get("start_lon"), params.get("start_lat"),
+                        params.get("end_lon"), params.get("end_lat"),
+                        algorithm, Router.Metric.FASTEST);
+                assertEquals(algorithm + " did not find the fastest path",
+                        time, travelTime(path), 1e-6);
+            }
+        }
+    }
+
+    /** Returns the travel time in seconds along a path, over the fastest parallel edges. */
+    private static double travelTime(List<Long> path) {
+        double time = 0;
+        for (int k = 1; k < path.size(); k++) {
+            int v = graph.indexOf(path.get(k - 1));
+            int w = graph.indexOf(path.get(k));
+            double fastest = Double.POSITIVE_INFINITY;
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                if (graph.edgeTarget(e) == w) {
+                    fastest = Math.min(fastest, graph.edgeTime(e));
+                }
+            }
+            time += fastest;
+        }
+        return time;
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
@@ -0,0 +1,117 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the segment index used by GraphDB.snap against a brute force scan over every
+ * road segment, and routing between points snapped partway along segments.
+ */
+public class TestSegmentIndex {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_QUERIES = 200;
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (!initialized) {
+            graph = new GraphDB(OSM_DB_PATH);
+            initialized = true;
+        }
+    }
+
+    @Test
+    public void testNearestSegment() {
+        Random random = new Random(71);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = -122.31 + random.nextDouble() * 0.11;
+            double lat = 37.81 + random.nextDouble() * 0.09;
+            SegmentIndex.Snap snap = graph.snap(lon, lat);
+            assertEquals(bruteForceDistance(lon, lat), snap.distance, 1e-9);
+            assertTrue(snap.fraction >= 0 && snap.fraction <= 1);
+            assertEquals(snap.to, graph.edgeTarget(snap.edge));
+        }
+    }
+
+    @Test
+    public void testSameSegment() {
+        SegmentIndex.Snap snap = graph.snap(-122.26, 37.87);
+        int from = snap.from;
+        int to = snap.to;
+        double lon1 = graph.lonAt(from) + 0.25 * (graph.lonAt(to) - graph.lonAt(from));
+        double lat1 = graph.latAt(from) + 0.25 * (graph.latAt(to) - graph.latAt(from));
+        double lon2 = graph.lonAt(from) + 0.75 * (graph.lonAt(to) - graph.lonAt(from));
+        double lat2 = graph.latAt(from) + 0.75 * (graph.latAt(to) - graph.latAt(from));
+        SegmentIndex.Snap start = graph.snap(lon1, lat1);
+        SegmentIndex.Snap end = graph.snap(lon2, lat2);
+        assertEquals(snap.edge, start.edge);
+        assertEquals(snap.edge, end.edge);
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            Router.Path path = Router.findPath(graph, start, end, algorithm,
+                    Router.Metric.SHORTEST, null);
+            assertEquals(0, path.vertices.length);
+            assertTrue(!path.isEmpty());
+            List<Router.NavigationDirection> directions = Router.routeDirections(graph, path);
+            assertEquals(1, directions.size());
+            assertEquals(graph.edgeLength(snap.edge) / 2, directions.get(0).distance, 1e-6);
+        }
+    }
+
+    @Test
+    public void testRepeatedNodeRef() throws IOException {
+        File source = File.createTempFile("repeated", ".osm.xml");
+        source.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(new FileWriter(source))) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            out.println("<node id=\"1\" lat=\"37.8700\" lon=\"-122.2600\"/>");
+            for (int i = 0; i < 3; i++) {
+                out.printf("<node id=\"%d\" lat=\"37.8690\" lon=\"%.4f\"/>%n", 2 + i,
+                        -122.2610 + i * 0.001);
+            }
+            out.println("<way id=\"1\"><nd ref=\"1\"/><nd ref=\"1\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way>");
+            out.println("<way id=\"2\"><nd ref=\"2\"/><nd ref=\"3\"/><nd ref=\"4\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way>");
+            out.println("</osm>");
+        }
+        GraphDB g = new GraphDB(source.getPath());
+        assertEquals(3, g.size());
+        SegmentIndex.Snap snap = g.snap(-122.2600, 37.8700);
+        assertEquals(0.001 * MILES_PER_DEGREE, snap.distance, 1e-9);
+        assertEquals(3, g.idAt(snap.fraction < 0.5 ? snap.from : snap.to));
+        assertTrue(!Router.shortestPath(g, -122.2600, 37.8700, -122.2590, 37.8690).isEmpty());
+    }
+
+    /** Returns the distance in miles to the closest segment, measured as the index does. */
+    private static double bruteForceDistance(double lon, double lat) {
+        double cosLat = Math.cos(Math.toRadians(lat));
+        double best = Double.POSITIVE_INFINITY;
+        for (int v = 0; v < graph.size(); v++) {
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                int w = graph.edgeTarget(e);
+                double ax = (graph.lonAt(v) - lon) * cosLat;
+                double ay = graph.latAt(v) - lat;
+                double dx = (graph.lonAt(w) - lon) * cosLat - ax;
+                double dy = graph.latAt(w) - lat - ay;
+                double length = dx * dx + dy * dy;
+                double t = length > 0 ? -(ax * dx + ay * dy) / length : 0;
+                t = Math.max(0, Math.min(1, t));
+                double px = ax + t * dx;
+                double py = ay + t * dy;
+                best = Math.min(best, px * px + py * py);
+            }
+        }
+        return Math.sqrt(best) * MILES_PER_DEGREE;
+    }
+}
@@ -0,0 +1,29 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how SpeedProfile reads maxspeed tags and falls back to highway class defaults.
+ */
+public class TestSpeedProfile {
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void testMaxSpeedUnits() {
+        assertEquals(25, SpeedProfile.mph("residential", "25 mph"), EPSILON);
+        assertEquals(30, SpeedProfile.mph("primary", "30mph"), EPSILON);
+        assertEquals(50 * 0.621371, SpeedProfile.mph("primary", "50"), EPSILON);
+        assertEquals(50 * 0.621371, SpeedProfile.mph("primary", "50 km/h"), EPSILON);
+        assertEquals(25, SpeedProfile.mph("secondary", "25 mph;35 mph"), EPSILON);
+    }
+
+    @Test
+    public void testHighwayDefaults() {
+        assertEquals(65, SpeedProfile.mph("motorway", null), EPSILON);
+        assertEquals(25, SpeedProfile.mph("residential", null), EPSILON);
+        assertEquals(35, SpeedProfile.mph("secondary", "none"), EPSILON);
+        assertEquals(40, SpeedProfile.mph("primary", "signals"), EPSILON);
+        assertEquals(SpeedProfile.FALLBACK_MPH, SpeedProfile.mph("service", null), EPSILON);
+        assertEquals(SpeedProfile.FALLBACK_MPH, SpeedProfile.mph(null, ""), EPSILON);
+    }
+}
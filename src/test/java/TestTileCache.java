@@ -0,0 +1,114 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that TileCache decodes each tile once, stays within its byte bound by evicting
+ * the least recently used tiles, never evicts pinned ones, and counts the use of tiles
+ * loaded ahead of time.
+ */
+public class TestTileCache {
+    private static final int SIZE = 16;
+    /** The bytes one decoded tile takes. */
+    private static final long TILE_BYTES = SIZE * SIZE * 4;
+    private String root;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        String[] names = {"d1_x0_y0.png", "d3_x0_y0.png", "d3_x1_y0.png", "d3_x2_y0.png"};
+        for (int i = 0; i < names.length; i++) {
+            BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_4BYTE_ABGR);
+            image.setRGB(0, 0, 0xff000000 | (i * 0x404040));
+            File file = new File(dir, names[i]);
+            file.deleteOnExit();
+            ImageIO.write(image, "png", file);
+        }
+        root = dir.getPath() + File.separator;
+    }
+
+    @Test
+    public void testDecodedOnce() {
+        TileCache cache = new TileCache(root, 4 * TILE_BYTES, 0);
+        BufferedImage first = cache.get("d3_x1_y0.png");
+        assertEquals(BufferedImage.TYPE_INT_RGB, first.getType());
+        assertEquals(0xff808080, first.getRGB(0, 0));
+        assertSame(first, cache.get("d3_x1_y0.png"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(TILE_BYTES, cache.bytes());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        TileCache cache = new TileCache(root, 2 * TILE_BYTES, 0);
+        cache.get("d3_x0_y0.png");
+        cache.get("d3_x1_y0.png");
+        cache.get("d3_x0_y0.png");
+        cache.get("d3_x2_y0.png");
+        assertEquals(2, cache.size());
+        assertEquals(2 * TILE_BYTES, cache.bytes());
+        cache.get("d3_x0_y0.png");
+        assertEquals(2, cache.hits());
+        cache.get("d3_x1_y0.png");
+        assertEquals(4, cache.misses());
+    }
+
+    @Test
+    public void testPinnedNeverEvicted() {
+        TileCache cache = new TileCache(root, TILE_BYTES, 1);
+        BufferedImage pinned = cache.get("d1_x0_y0.png");
+        cache.get("d3_x0_y0.png");
+        cache.get("d3_x1_y0.png");
+        cache.get("d3_x2_y0.png");
+        assertEquals(2, cache.size());
+        assertEquals(2 * TILE_BYTES, cache.bytes());
+        assertSame(pinned, cache.get("d1_x0_y0.png"));
+    }
+
+    @Test
+    public void testMissingTile() {
+        TileCache cache = new TileCache(root, TILE_BYTES, 0);
+        assertNull(cache.get("d9_x0_y0.png"));
+        assertEquals(0, cache.size());
+        assertNotNull(cache.get("d3_x0_y0.png"));
+        assertEquals(12, TileCache.depthOf("d12_x3_y4.png"));
+        assertEquals(0, TileCache.depthOf("root.png"));
+    }
+
+    @Test
+    public void testPrefetchedTilesCounted() {
+        TileCache cache = new TileCache(root, 2 * TILE_BYTES, 1);
+        assertTrue(cache.prefetch("d1_x0_y0.png", true));
+        assertTrue(cache.prefetch("d3_x0_y0.png", false));
+        assertTrue(cache.prefetch("d3_x1_y0.png", false));
+        assertFalse(cache.prefetch("d3_x1_y0.png", false));
+        assertFalse(cache.prefetch("d9_x0_y0.png", false));
+        assertEquals(0, cache.hits() + cache.misses());
+
+        cache.get("d1_x0_y0.png");
+        cache.get("d3_x1_y0.png");
+        cache.get("d3_x1_y0.png");
+        /* Evicts d3_x0_y0.png unused, the least recently used. */
+        cache.get("d3_x2_y0.png");
+        assertEquals(3, cache.hits());
+        assertEquals(1L, cache.toMap().get("warmed"));
+        assertEquals(1L, cache.toMap().get("warmed_used"));
+        assertEquals(2L, cache.toMap().get("prefetched"));
+        assertEquals(1L, cache.toMap().get("prefetched_used"));
+        cache.get("d3_x0_y0.png");
+        assertEquals(1L, cache.toMap().get("prefetched_used"));
+    }
+}
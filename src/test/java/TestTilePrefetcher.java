@@ -0,0 +1,74 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which tiles TilePrefetcher loads: every tile down to the warm-up depth, and the
+ * tiles around a window, within the map.
+ */
+public class TestTilePrefetcher {
+    private String root;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        for (int depth = 0; depth <= 2; depth++) {
+            for (int y = 0; y < 1 << depth; y++) {
+                for (int x = 0; x < 1 << depth; x++) {
+                    File file = new File(dir, Rasterer.tileName(depth, x, y));
+                    file.deleteOnExit();
+                    ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), "png",
+                            file);
+                }
+            }
+        }
+        root = dir.getPath() + File.separator;
+    }
+
+    @Test
+    public void testWarm() {
+        TileCache cache = new TileCache(root, 1 << 20, 0);
+        TilePrefetcher prefetcher = new TilePrefetcher(cache, false);
+        assertEquals(5, prefetcher.warm(1));
+        assertEquals(5, cache.size());
+        /* Depth 2 is loaded; the missing depths below it are skipped. */
+        assertEquals(16, prefetcher.warm(4));
+        assertEquals(0, prefetcher.warm(4));
+        cache.get(Rasterer.tileName(2, 3, 3));
+        assertEquals(1L, cache.toMap().get("warmed_used"));
+        assertEquals(0, cache.misses());
+    }
+
+    @Test
+    public void testTilesAround() {
+        TilePrefetcher prefetcher = new TilePrefetcher(new TileCache(root, 0, 0), false);
+        /* A window of two tiles in the middle of depth 2 has a ring of ten. */
+        Rasterer.Window middle = new Rasterer.Window(2, 1, 3, 1, 2, 0, 0, 0, 0);
+        List<String> around = prefetcher.tilesAround(middle);
+        assertEquals(10, around.size());
+        assertTrue(around.containsAll(Arrays.asList("d2_x0_y0.png", "d2_x3_y2.png",
+                "d2_x0_y1.png", "d2_x3_y1.png")));
+        assertTrue(!around.contains("d2_x1_y1.png") && !around.contains("d2_x2_y1.png"));
+
+        /* At the corner, the ring is cut off by the edges of the map. */
+        Rasterer.Window corner = new Rasterer.Window(2, 0, 1, 0, 1, 0, 0, 0, 0);
+        assertEquals(Arrays.asList("d2_x1_y0.png", "d2_x0_y1.png", "d2_x1_y1.png"),
+                prefetcher.tilesAround(corner));
+
+        TilePrefetcher zooming = new TilePrefetcher(new TileCache(root, 0, 0), true);
+        List<String> zoomed = zooming.tilesAround(corner);
+        assertEquals(7, zoomed.size());
+        assertTrue(zoomed.containsAll(Arrays.asList("d3_x0_y0.png", "d3_x1_y0.png",
+                "d3_x0_y1.png", "d3_x1_y1.png")));
+    }
+}